@@ -1,9 +1,11 @@
 package org.rent.app.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 import java.util.concurrent.Executor;
 
@@ -19,4 +21,38 @@ public class AsyncConfig {
         executor.setThreadNamePrefix("cdcTaskManager-");
         return executor;
     }
+
+    @Bean(name = "indexMaintenanceTaskExecutor")
+    public Executor indexMaintenanceTaskExecutor() {
+        var executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setThreadNamePrefix("indexMaintenance-");
+        return executor;
+    }
+
+    @Bean(name = "cdcParseTaskExecutor")
+    public ThreadPoolTaskExecutor cdcParseTaskExecutor(@Value("${cdc.parse.threads:4}") int threads) {
+        var executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setThreadNamePrefix("cdcParse-");
+        return executor;
+    }
+
+    @Bean(name = "searchCacheEvictionScheduler")
+    public ThreadPoolTaskScheduler searchCacheEvictionScheduler() {
+        var scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("searchCacheEviction-");
+        return scheduler;
+    }
+
+    @Bean(name = "slotMonitorScheduler")
+    public ThreadPoolTaskScheduler slotMonitorScheduler() {
+        var scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("slotMonitor-");
+        return scheduler;
+    }
 }
@@ -1,30 +1,67 @@
 package org.rent.app.config;
 
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.elasticsearch.client.ClientConfiguration;
-import org.springframework.data.elasticsearch.client.RestClients;
 import org.springframework.data.elasticsearch.config.AbstractElasticsearchConfiguration;
 import org.springframework.data.elasticsearch.config.EnableElasticsearchAuditing;
 import org.springframework.data.elasticsearch.repository.config.EnableElasticsearchRepositories;
-import org.springframework.http.HttpHeaders;
 
+/**
+ * ElasticsearchConfig
+ * <p>
+ * The client is shared by Spring Data repositories and by the CDC bulk sink.
+ * The connection pool is sized for several bulk requests in flight at once,
+ * see {@link org.rent.app.service.cdc.ElasticsearchBulkSink}.
+ * </p>
+ */
 @Configuration
 @EnableElasticsearchAuditing
 @EnableElasticsearchRepositories
 public class ElasticsearchConfig extends AbstractElasticsearchConfiguration {
+    private static final String COMPATIBLE_WITH_7 = "application/vnd.elasticsearch+json;compatible-with=7";
+
+    @Value("${elasticsearch.host:localhost:9200}")
+    private String host;
+    @Value("${elasticsearch.client.max-connections:64}")
+    private int maxConnections;
+    @Value("${elasticsearch.client.max-connections-per-route:32}")
+    private int maxConnectionsPerRoute;
+    @Value("${elasticsearch.client.io-threads:2}")
+    private int ioThreads;
+    @Value("${elasticsearch.client.connect-timeout-ms:1000}")
+    private int connectTimeoutMs;
+    @Value("${elasticsearch.client.socket-timeout-ms:30000}")
+    private int socketTimeoutMs;
+    @Value("${elasticsearch.client.compression:false}")
+    private boolean compression;
 
     @Bean
     @Override
+    @SuppressWarnings("deprecation")
     public RestHighLevelClient elasticsearchClient() {
-        HttpHeaders compatibilityHeaders = new HttpHeaders();
-        compatibilityHeaders.add("Accept", "application/vnd.elasticsearch+json;compatible-with=7");
-        compatibilityHeaders.add("Content-Type", "application/vnd.elasticsearch+json;compatible-with=7");
-        ClientConfiguration clientConfiguration = ClientConfiguration.builder()
-                .connectedToLocalhost()
-                .withDefaultHeaders(compatibilityHeaders)
-                .build();
-        return RestClients.create(clientConfiguration).rest();
+        var restClientBuilder = RestClient.builder(HttpHost.create(host))
+                .setDefaultHeaders(new Header[]{
+                        new BasicHeader("Accept", COMPATIBLE_WITH_7),
+                        new BasicHeader("Content-Type", COMPATIBLE_WITH_7)})
+                // gzip request bodies; bulk NDJSON compresses well
+                .setCompressionEnabled(compression)
+                .setRequestConfigCallback(requestConfig -> requestConfig
+                        .setConnectTimeout(connectTimeoutMs)
+                        .setSocketTimeout(socketTimeoutMs))
+                .setHttpClientConfigCallback(httpClient -> httpClient
+                        .setMaxConnTotal(maxConnections)
+                        .setMaxConnPerRoute(maxConnectionsPerRoute)
+                        .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                                .setIoThreadCount(ioThreads)
+                                .setSoKeepAlive(true)
+                                .build()));
+        return new RestHighLevelClient(restClientBuilder);
     }
 }
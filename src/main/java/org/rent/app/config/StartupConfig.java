@@ -0,0 +1,29 @@
+package org.rent.app.config;
+
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * StartupConfig
+ * <p>
+ * With the {@code fast-startup} profile ({@code spring.main.lazy-initialization=true})
+ * only the beans on the CDC path are created at startup:
+ * configuration, the CDC services and the repositories (ELK repositories create their indices on initialization,
+ * so the pipeline never writes into an index with a dynamic mapping).
+ * Controllers and entity services are created on the first request.
+ * </p>
+ */
+@Configuration
+public class StartupConfig {
+    private static final Set<String> EAGER_PACKAGES = Set.of(
+            "org.rent.app.config", "org.rent.app.service.cdc", "org.rent.app.repository", "org.rent.app.repository.cdc");
+
+    @Bean
+    public static LazyInitializationExcludeFilter cdcPathExcludeFilter() {
+        return (beanName, beanDefinition, beanType) -> Objects.nonNull(beanType) && EAGER_PACKAGES.contains(beanType.getPackageName());
+    }
+}
@@ -1,35 +1,111 @@
 package org.rent.app.controller;
 
+import org.rent.app.domain.cdc.Lsn;
 import org.rent.app.dto.ProductDto;
+import org.rent.app.dto.ProductSearchQuery;
+import org.rent.app.service.AggregateSummary;
 import org.rent.app.service.EntityService;
+import org.rent.app.service.ProductReadService;
+import org.rent.app.service.ProductSearchService;
+import org.rent.app.service.cdc.AggregateProjectionService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.Objects;
 
 @RestController
 @RequestMapping("product")
 public class ProductController {
+    /*
+     * a write returns the token in LSN_HEADER, a read passes it back in MIN_LSN_HEADER
+     */
+    public static final String LSN_HEADER = "X-Lsn";
+    public static final String MIN_LSN_HEADER = "X-Min-Lsn";
 
     @Autowired
     private EntityService<ProductDto> service;
+    @Autowired
+    private ProductSearchService searchService;
+    @Autowired
+    private ProductReadService readService;
+    @Autowired(required = false)
+    private AggregateProjectionService projectionService;
 
     @PostMapping()
-    public ProductDto create(@RequestBody ProductDto product) {
-        return service.create(product);
+    public ProductDto create(@RequestBody ProductDto product, HttpServletResponse response) {
+        var res = service.create(product);
+        setWriteToken(response);
+        return res;
     }
 
     @PutMapping
-    public ProductDto update(@RequestBody ProductDto product) {
-        return service.update(product);
+    public ProductDto update(@RequestBody ProductDto product, HttpServletResponse response) {
+        var res = service.update(product);
+        setWriteToken(response);
+        return res;
+    }
+
+    @GetMapping("{id}")
+    public ResponseEntity<ProductDto> get(@PathVariable Long id,
+                                          @RequestHeader(name = MIN_LSN_HEADER, required = false) String minLsn) {
+        return ResponseEntity.of(readService.findById(id, Objects.isNull(minLsn) ? null : parseToken(minLsn)));
+    }
+
+    @GetMapping("search")
+    public List<ProductDto> search(@RequestParam(required = false) String text,
+                                   @RequestParam(required = false) Long category,
+                                   @RequestParam(required = false) String brand,
+                                   @RequestParam(defaultValue = "0") int page,
+                                   @RequestParam(defaultValue = "20") int size) {
+        return searchService.search(new ProductSearchQuery(text, category, brand, page, size));
+    }
+
+    /*
+     * summaries of UncheckedEntityService.getProjections(), e.g. /product/summary/product_by_category/2
+     */
+    @GetMapping("summary/{projection}/{key}")
+    public ResponseEntity<AggregateSummary> getSummary(@PathVariable String projection, @PathVariable String key) {
+        if (Objects.isNull(projectionService)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Projections are maintained in the sync profile only");
+        }
+        try {
+            return ResponseEntity.of(projectionService.getSummary(projection, key));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        }
     }
 
     @DeleteMapping
-    public void delete(@RequestBody ProductDto product) {
+    public void delete(@RequestBody ProductDto product, HttpServletResponse response) {
         service.delete(product);
+        setWriteToken(response);
+    }
+
+    private static Lsn parseToken(String token) {
+        try {
+            return Lsn.parse(token);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid %s header [%s]".formatted(MIN_LSN_HEADER, token));
+        }
+    }
+
+    private void setWriteToken(HttpServletResponse response) {
+        var token = readService.getWriteToken();
+        if (Objects.nonNull(token)) response.setHeader(LSN_HEADER, token.toString());
     }
 
 }
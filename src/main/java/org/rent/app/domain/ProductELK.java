@@ -10,6 +10,9 @@ import org.springframework.data.elasticsearch.annotations.DateFormat;
 import org.springframework.data.elasticsearch.annotations.Document;
 import org.springframework.data.elasticsearch.annotations.Field;
 import org.springframework.data.elasticsearch.annotations.FieldType;
+import org.springframework.data.elasticsearch.annotations.InnerField;
+import org.springframework.data.elasticsearch.annotations.MultiField;
+import org.springframework.data.elasticsearch.annotations.Setting;
 
 import javax.persistence.Id;
 import java.time.LocalDateTime;
@@ -17,6 +20,7 @@ import java.time.LocalDateTime;
 @Data
 @Builder
 @Document(indexName = "product", createIndex = true)
+@Setting(settingPath = "/elasticsearch/product-settings.json")
 public class ProductELK implements Persistable<Long> {
     @Id
     @Field(type = FieldType.Long)
@@ -25,7 +29,11 @@ public class ProductELK implements Persistable<Long> {
     private String name;
     @Field(type = FieldType.Text)
     private String description;
-    @Field(type = FieldType.Text)
+    /*
+     * brand.keyword is normalized as ProductSearchQuery.normalize(), brand pages filter on it
+     */
+    @MultiField(mainField = @Field(type = FieldType.Text),
+            otherFields = @InnerField(suffix = "keyword", type = FieldType.Keyword, normalizer = "search_query"))
     private String brand;
     @Field(type = FieldType.Long)
     private Long category;
@@ -37,6 +45,13 @@ public class ProductELK implements Persistable<Long> {
     @LastModifiedDate
     @Field(type = FieldType.Date, format = DateFormat.date_hour_minute_second_millis)
     private LocalDateTime updated;
+    /*
+     * denormalized from the category and owner tables by the CDC pipeline, see Enrichment
+     */
+    @Field(type = FieldType.Keyword)
+    private String categoryName;
+    @Field(type = FieldType.Keyword)
+    private String ownerName;
 
     @Override
     public boolean isNew() {
@@ -1,18 +1,14 @@
 package org.rent.app.domain.cdc;
 
+import lombok.AllArgsConstructor;
 import lombok.Data;
 
-import javax.persistence.Entity;
-import javax.persistence.Id;
-import javax.persistence.NamedNativeQueries;
-import javax.persistence.NamedNativeQuery;
-import javax.persistence.Table;
-import java.io.Serializable;
-
 /**
  * CDCRecord
  * <p>
  * WAL record in format of {@code test_decoding} output plugin.
+ * Records are read by {@link org.rent.app.repository.cdc.SlotChangesRepository} with plain JDBC,
+ * it is not a JPA entity to keep them out of the persistence context.
  *
  * @see <a href="https://www.postgresql.org/docs/current/logicaldecoding-output-plugin.html">Logical Decoding Output Plugins</a>
  *
@@ -21,30 +17,19 @@ import java.io.Serializable;
  * @since 18.07.2022
  */
 @Data
-@Entity
-@Table(name = "pg_logical_slot_peek_changes")
-@NamedNativeQueries({
-        @NamedNativeQuery(name = "CDCRecord.peekAll",
-                query = "SELECT lsn, xid, data FROM pg_logical_slot_peek_changes(:slot_name, NULL, NULL);",
-                resultClass = CDCRecord.class),
-        @NamedNativeQuery(name = "CDCRecord.getProcessed",
-                query = "SELECT lsn, xid, data FROM pg_logical_slot_get_changes(:slot_name, cast(:last_lsn as pg_lsn), NULL);",
-                resultClass = CDCRecord.class)
-})
-public class CDCRecord implements Serializable {
+@AllArgsConstructor
+public class CDCRecord {
     /**
-     * lsn (Log Sequence Number) data which is a pointer to a location in the WAL
+     * lsn (Log Sequence Number) data which is a pointer to a location in the WAL.
+     * Use {@link Lsn} to compare and format it.
      */
-    @Id
-    private String lsn;
+    private long lsn;
     /**
      * the transaction id
      */
-    @Id
-    private String xid;
+    private long xid;
     /**
      * contains a table name, an operation (INSERT.UPDATE.DELETE) and column/values.
      */
-    @Id
     private String data;
 }
@@ -0,0 +1,76 @@
+package org.rent.app.domain.cdc;
+
+/**
+ * Lsn
+ * <p>
+ * Log Sequence Number, a pointer to a location in the WAL.
+ * PostgreSQL prints it as two hexadecimal 32-bit halves {@code XXXXXXXX/XXXXXXXX},
+ * internally it is an unsigned 64-bit byte position, so lsns are ordered and
+ * the difference of two lsns is the number of WAL bytes between them.
+ * </p>
+ */
+public record Lsn(long value) implements Comparable<Lsn> {
+    public static final Lsn ZERO = new Lsn(0L);
+
+    public static Lsn of(long value) {
+        return value == 0L ? ZERO : new Lsn(value);
+    }
+
+    /**
+     * @param lsn - textual lsn {@code XXXXXXXX/XXXXXXXX}
+     */
+    public static Lsn parse(String lsn) {
+        return of(parseLong(lsn));
+    }
+
+    public static long parseLong(CharSequence lsn) {
+        int slash = -1;
+        for (int i = 0; i < lsn.length(); i++) {
+            if (lsn.charAt(i) == '/') {
+                slash = i;
+                break;
+            }
+        }
+        if (slash <= 0 || slash == lsn.length() - 1) {
+            throw new IllegalArgumentException("Invalid lsn [" + lsn + "]");
+        }
+        return (Long.parseLong(lsn, 0, slash, 16) << 32) | Long.parseLong(lsn, slash + 1, lsn.length(), 16);
+    }
+
+    public static String format(long value) {
+        return Long.toHexString(value >>> 32).toUpperCase() + '/' + Long.toHexString(value & 0xFFFFFFFFL).toUpperCase();
+    }
+
+    public boolean isAfter(Lsn other) {
+        return compareTo(other) > 0;
+    }
+
+    public boolean isBefore(Lsn other) {
+        return compareTo(other) < 0;
+    }
+
+    /**
+     * @return number of WAL bytes from other to this lsn
+     */
+    public long bytesFrom(Lsn other) {
+        return value - other.value;
+    }
+
+    public static Lsn max(Lsn a, Lsn b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    public static Lsn min(Lsn a, Lsn b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    @Override
+    public int compareTo(Lsn other) {
+        return Long.compareUnsigned(value, other.value);
+    }
+
+    @Override
+    public String toString() {
+        return format(value);
+    }
+}
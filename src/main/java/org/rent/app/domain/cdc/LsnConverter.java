@@ -0,0 +1,24 @@
+package org.rent.app.domain.cdc;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+import java.util.Objects;
+
+/**
+ * LsnConverter
+ * <p>
+ * Maps pg_lsn columns read as text to {@link Lsn}.
+ * </p>
+ */
+@Converter
+public class LsnConverter implements AttributeConverter<Lsn, String> {
+    @Override
+    public String convertToDatabaseColumn(Lsn lsn) {
+        return Objects.nonNull(lsn) ? lsn.toString() : null;
+    }
+
+    @Override
+    public Lsn convertToEntityAttribute(String lsn) {
+        return Objects.nonNull(lsn) ? Lsn.parse(lsn) : null;
+    }
+}
@@ -2,6 +2,7 @@ package org.rent.app.domain.cdc;
 
 import lombok.Getter;
 
+import javax.persistence.Convert;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Table;
@@ -16,6 +17,8 @@ public class ReplicationSlot {
     private String slotType;
     private String xmin;
     private String catalogXmin;
-    private String restartLsn;
-    private String confirmedFlushLsn;
+    @Convert(converter = LsnConverter.class)
+    private Lsn restartLsn;
+    @Convert(converter = LsnConverter.class)
+    private Lsn confirmedFlushLsn;
 }
@@ -17,4 +17,6 @@ public class ProductDto {
     private Long owner;
     private Long price;
     private LocalDateTime updated;
+    private String categoryName;
+    private String ownerName;
 }
@@ -0,0 +1,28 @@
+package org.rent.app.dto;
+
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * ProductSearchQuery
+ * <p>
+ * A catalog query: full text, category and brand filters and a page.
+ * {@link #normalize()} makes equal queries equal objects, so they share a cache entry.
+ * </p>
+ */
+public record ProductSearchQuery(String text, Long category, String brand, int page, int size) {
+
+    public ProductSearchQuery normalize() {
+        return new ProductSearchQuery(normalize(text), category, normalize(brand), Math.max(page, 0), Math.max(size, 1));
+    }
+
+    /**
+     * Trim, lower case and collapse whitespaces. Blank strings become null.
+     */
+    public static String normalize(String s) {
+        if (Objects.isNull(s) || s.isBlank()) {
+            return null;
+        }
+        return s.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+}
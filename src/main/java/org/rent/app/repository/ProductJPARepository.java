@@ -2,6 +2,15 @@ package org.rent.app.repository;
 
 import org.rent.app.domain.ProductDB;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+
+import javax.persistence.LockModeType;
+import java.util.Optional;
 
 public interface ProductJPARepository extends JpaRepository<ProductDB, Long> {
+    /*
+     * SELECT ... FOR UPDATE, the row can not change until the transaction ends
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    Optional<ProductDB> findLockedById(Long id);
 }
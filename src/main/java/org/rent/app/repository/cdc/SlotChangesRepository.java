@@ -0,0 +1,112 @@
+package org.rent.app.repository.cdc;
+
+import org.rent.app.domain.cdc.CDCRecord;
+import org.rent.app.domain.cdc.Lsn;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Types;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * SlotChangesRepository
+ * <p>
+ * Reads changes of a logical replication slot with plain JDBC.
+ * <p>
+ * Rows are streamed through a server-side cursor ({@code cdc.slot.fetch-size} rows per round trip),
+ * so neither the JDBC driver nor the persistence context holds the whole result set.
+ * pgjdbc uses a cursor only inside a transaction, call these methods from a transactional method.
+ * </p>
+ */
+@Repository
+@Profile("sync")
+public class SlotChangesRepository {
+    private static final String LSN_XID_DATA =
+            "cast(lsn - cast('0/0' as pg_lsn) as bigint) as lsn, cast(cast(xid as text) as bigint) as xid, data";
+
+    @Value("${cdc.slot.fetch-size:1000}")
+    private int fetchSize;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Stream changes without consuming them.
+     *
+     * @param slotName     - the replication slot
+     * @param uptoLsn      - only transactions committed before this lsn are decoded. null means no limit
+     * @param uptoNchanges - decoding stops after the transaction that makes the number of rows exceed this value.
+     *                       So the result always ends on a transaction boundary. 0 means no limit
+     * @param consumer     - receives records in lsn order. COMMIT records contain the commit timestamp
+     */
+    public void peekChanges(String slotName, Lsn uptoLsn, int uptoNchanges, Consumer<CDCRecord> consumer) {
+        jdbcTemplate.query(connection -> {
+            var statement = connection.prepareStatement(
+                    "SELECT " + LSN_XID_DATA + " FROM pg_logical_slot_peek_changes(?, cast(? as pg_lsn), ?, "
+                            + "'include-timestamp', 'on')");
+            statement.setFetchSize(fetchSize);
+            statement.setString(1, slotName);
+            statement.setString(2, Objects.toString(uptoLsn, null));
+            statement.setObject(3, uptoNchanges > 0 ? uptoNchanges : null, Types.INTEGER);
+            return statement;
+        }, (RowCallbackHandler) resultSet -> consumer.accept(new CDCRecord(resultSet.getLong(1), resultSet.getLong(2), resultSet.getString(3))));
+    }
+
+    /**
+     * Count changes without transferring them.
+     */
+    public long countChanges(String slotName) {
+        return Objects.requireNonNull(jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM pg_logical_slot_peek_changes(?, NULL, NULL)", Long.class, slotName));
+    }
+
+    /**
+     * Consume changes of transactions committed before or at lsn.
+     * The changes are counted on the server side and are not transferred.
+     *
+     * @return number of consumed records
+     */
+    public long consumeChanges(String slotName, Lsn uptoLsn) {
+        return Objects.requireNonNull(jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM pg_logical_slot_get_changes(?, cast(? as pg_lsn), NULL)",
+                Long.class, slotName, uptoLsn.toString()));
+    }
+
+    public Lsn getCurrentWalLsn() {
+        return Lsn.of(Objects.requireNonNull(jdbcTemplate.queryForObject(
+                "SELECT cast(pg_current_wal_lsn() - cast('0/0' as pg_lsn) as bigint)", Long.class)));
+    }
+
+    /**
+     * @return the WAL insert lsn, the next WAL record is written at or after it
+     */
+    public Lsn getCurrentWalInsertLsn() {
+        return Lsn.of(Objects.requireNonNull(jdbcTemplate.queryForObject(
+                "SELECT cast(pg_current_wal_insert_lsn() - cast('0/0' as pg_lsn) as bigint)", Long.class)));
+    }
+
+    /**
+     * Write a non-transactional logical decoding message into WAL.
+     *
+     * @return lsn of the message
+     */
+    public Lsn emitMessage(String prefix, String content) {
+        return Lsn.of(Objects.requireNonNull(jdbcTemplate.queryForObject(
+                "SELECT cast(pg_logical_emit_message(false, ?, ?) - cast('0/0' as pg_lsn) as bigint)",
+                Long.class, prefix, content)));
+    }
+
+    /**
+     * @return bytes of WAL retained by the slot
+     */
+    public long getRetainedWalBytes(String slotName) {
+        return Objects.requireNonNull(jdbcTemplate.queryForObject(
+                "SELECT coalesce(cast(pg_wal_lsn_diff(pg_current_wal_lsn(), restart_lsn) as bigint), 0) "
+                        + "FROM pg_replication_slots WHERE slot_name = ?", Long.class, slotName));
+    }
+}
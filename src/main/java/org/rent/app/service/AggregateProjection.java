@@ -0,0 +1,24 @@
+package org.rent.app.service;
+
+import java.util.List;
+
+/**
+ * AggregateProjection
+ * <p>
+ * A summary of an entity grouped by a property, maintained from the change stream.
+ * Projections are declared by {@link UncheckedEntityService#getProjections()}.
+ * For every value of the key property the summary keeps the number of rows
+ * and count/sum/min/max of every metric property, see {@link AggregateSummary}.
+ * Rows with NULL key are not counted.
+ * </p>
+ * <p>
+ * Properties are JPA property names, the ELK document must have the same properties.
+ * The table must have {@code REPLICA IDENTITY FULL}, so WAL contains the old values of changed rows.
+ * </p>
+ */
+public record AggregateProjection(
+        String name, // unique name of the projection
+        String keyProperty, // rows are grouped by the value of this property
+        List<String> metricProperties // numeric properties
+) {
+}
@@ -0,0 +1,29 @@
+package org.rent.app.service;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Map;
+
+/**
+ * AggregateSummary
+ * <p>
+ * A summary document of {@link AggregateProjection} for a key.
+ * </p>
+ */
+public record AggregateSummary(
+        String projection,
+        String key,
+        long count, // number of rows with the key
+        Map<String, Metric> metrics // hashed by metric property
+) {
+    public record Metric(
+            long count, // number of rows with not NULL value
+            double sum,
+            Double min,
+            Double max) {
+        @JsonProperty
+        public Double avg() {
+            return count > 0 ? sum / count : null;
+        }
+    }
+}
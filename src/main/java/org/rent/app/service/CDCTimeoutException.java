@@ -0,0 +1,18 @@
+package org.rent.app.service;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * CDCTimeoutException
+ * <p>
+ * A write is committed to the database, but the CDC pipeline has not indexed it within the timeout.
+ * The change is not lost, it is indexed by the next processing.
+ * </p>
+ */
+@ResponseStatus(HttpStatus.GATEWAY_TIMEOUT)
+public class CDCTimeoutException extends IllegalStateException {
+    public CDCTimeoutException(String message) {
+        super(message);
+    }
+}
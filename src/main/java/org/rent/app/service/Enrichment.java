@@ -0,0 +1,22 @@
+package org.rent.app.service;
+
+/**
+ * Enrichment
+ * <p>
+ * A denormalized document property whose value is looked up in a reference table by a key property of the entity,
+ * e.g. the category name of a product. Enrichments are declared by {@link UncheckedEntityService#getEnrichments()}.
+ * The CDC pipeline keeps the reference values in a bounded cache, so an enriched document costs no database round trip.
+ * A change of a reference row updates the documents that refer to it.
+ * </p>
+ * <p>
+ * Properties are ELK document property names, the key property must also be a JPA property.
+ * </p>
+ */
+public record Enrichment(
+        String property, // the enriched document property, a String
+        String keyProperty, // the property with the key of the reference row
+        String referenceTable,
+        String referenceKeyColumn,
+        String referenceValueColumn
+) {
+}
@@ -1,27 +1,38 @@
 package org.rent.app.service;
 
 import lombok.extern.slf4j.Slf4j;
+import org.rent.app.domain.ProductDB;
+import org.rent.app.domain.ProductELK;
 import org.rent.app.dto.ProductDto;
-import org.rent.app.repository.ProductELKRepository;
+import org.rent.app.dto.ProductSearchQuery;
 import org.rent.app.repository.ProductJPARepository;
+import org.rent.app.service.cdc.AppliedDocumentRegistry;
+import org.rent.app.service.cdc.PriorityLane;
+import org.rent.app.service.cdc.SlotLagGuard;
 import org.rent.app.service.cdc.TestDecodingCDCService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.util.HashSet;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static org.rent.app.service.ProductMapper.dto2jpa;
+import static org.rent.app.service.ProductMapper.jpa2elk;
 
 /**
  * ProductCDCService
  * <p>
  * A version of ProductVanillaService with synchronization.
+ * While the pipeline is behind, e.g. during an import, writes take the {@link PriorityLane}
+ * and do not wait for the pipeline.
  * </p>
  *
  * @author Sergey Yurkevich ysaspb@gmail.com
@@ -37,35 +48,127 @@ public class ProductCDCService implements EntityService<ProductDto> {
     @Autowired
     private ProductJPARepository jpaRepository;
     @Autowired
-    private ProductELKRepository elkRepository;
+    private ProductIndexRouting routing;
+    @Autowired
+    private AppliedDocumentRegistry appliedDocuments;
+    @Autowired
+    private SlotLagGuard lagGuard;
+    @Autowired
+    private ProductReadService readService;
+    @Autowired
+    private PriorityLane priorityLane;
+    @Autowired
+    private SearchResultCache searchResultCache;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    /*
+     * a write of the priority lane: the rows before and after it and the version of its documents
+     */
+    private record PriorityWrite(ProductDB before, ProductDB after, long version) {
+    }
 
     @Override
     @Transactional(propagation = Propagation.NEVER)
     public ProductDto create(ProductDto dto) {
         Objects.requireNonNull(dto).setId(null);
+        lagGuard.beforeWrite();
+        if (priorityLane.isBacklogged()) {
+            var write = transactionTemplate.execute(status -> {
+                long version = priorityLane.getVersion();
+                return new PriorityWrite(null, jpaRepository.save(dto2jpa(dto)), version);
+            });
+            return applyPriority(Objects.requireNonNull(write));
+        }
         var dbEntity = jpaRepository.save(dto2jpa(dto));
-        var id = dbEntity.getId();
-        processNextCDCChunk();
-        return elkRepository.findById(id).map(ProductMapper::elk2dto).orElse(null);
+        try (var watch = appliedDocuments.watch(ProductDB.class, dbEntity.getId())) {
+            readService.captureWriteToken();
+            processNextCDCChunk();
+            return getApplied(watch, dbEntity.getId());
+        }
     }
 
     @Override
     @Transactional(propagation = Propagation.NEVER)
     public ProductDto update(ProductDto dto) {
         var id = Objects.requireNonNull(Objects.requireNonNull(dto).getId());
-        jpaRepository.save(dto2jpa(dto));
-        processNextCDCChunk();
-        return elkRepository.findById(id).map(ProductMapper::elk2dto).orElse(null);
+        lagGuard.beforeWrite();
+        if (priorityLane.isBacklogged()) {
+            var write = transactionTemplate.execute(status -> {
+                var before = jpaRepository.findLockedById(id).orElse(null);
+                long version = priorityLane.getVersion();
+                return new PriorityWrite(before, jpaRepository.save(dto2jpa(dto)), version);
+            });
+            return applyPriority(Objects.requireNonNull(write));
+        }
+        try (var watch = appliedDocuments.watch(ProductDB.class, id)) {
+            jpaRepository.save(dto2jpa(dto));
+            readService.captureWriteToken();
+            processNextCDCChunk();
+            return getApplied(watch, id);
+        }
     }
 
     @Override
     @Transactional(propagation = Propagation.NEVER)
     public void delete(ProductDto dto) {
         var dbEntity = dto2jpa(Objects.requireNonNull(dto));
+        lagGuard.beforeWrite();
+        if (priorityLane.isBacklogged() && Objects.nonNull(dbEntity.getId())) {
+            var write = transactionTemplate.execute(status -> {
+                var before = jpaRepository.findLockedById(dbEntity.getId()).orElse(null);
+                long version = priorityLane.getVersion();
+                if (Objects.nonNull(before)) jpaRepository.delete(before);
+                return new PriorityWrite(before, null, version);
+            });
+            applyPriority(Objects.requireNonNull(write));
+            return;
+        }
         jpaRepository.delete(dbEntity);
+        readService.captureWriteToken();
         processNextCDCChunk();
     }
 
+    /*
+     * index the committed write directly. A product moved to another shard is deleted from the old one.
+     */
+    private ProductDto applyPriority(PriorityWrite write) {
+        readService.captureWriteToken();
+        var before = Objects.isNull(write.before()) ? null : jpa2elk(write.before());
+        var after = Objects.isNull(write.after()) ? null : jpa2elk(write.after());
+        if (Objects.nonNull(before) && (Objects.isNull(after) || !Objects.equals(routing.routingOf(before), routing.routingOf(after)))) {
+            priorityLane.delete(ProductELK.class, before.getId(), routing.routingOf(before), write.version());
+        }
+        if (Objects.nonNull(after)) {
+            priorityLane.index(after.getId(), after, routing.routingOf(after), write.version());
+        }
+        Set<String> tags = new HashSet<>();
+        tags.add(SearchResultCache.tagAll(ProductELK.class));
+        for (var product : new ProductELK[]{before, after}) {
+            if (Objects.isNull(product)) continue;
+            if (Objects.nonNull(product.getCategory())) {
+                tags.add(SearchResultCache.tag(ProductELK.class, "category", String.valueOf(product.getCategory())));
+            }
+            String brand = ProductSearchQuery.normalize(product.getBrand());
+            if (Objects.nonNull(brand)) tags.add(SearchResultCache.tag(ProductELK.class, "brand", brand));
+        }
+        searchResultCache.evict(tags);
+        // enriched properties are filled when the pipeline reaches the write
+        return Objects.isNull(after) ? null : ProductMapper.elk2dto(after);
+    }
+
+    /*
+     * the state of the product indexed by the pipeline or, if the pipeline has not seen the product, the state in the index.
+     */
+    private ProductDto getApplied(AppliedDocumentRegistry.Watch watch, Long id) {
+        var applied = watch.getAppliedDocument();
+        if (applied.isPresent()) {
+            // null if the product is deleted
+            return applied.get().document() instanceof ProductELK elkEntity ? ProductMapper.elk2dto(elkEntity) : null;
+        }
+        return routing.findById(id).map(ProductMapper::elk2dto).orElse(null);
+    }
+
     public void processNextCDCChunk() {
         try {
             int txCount = cdcService.processNextCDCChunk().get(CDC_PROCESSING_TIMEOUT_SEC, TimeUnit.SECONDS);
@@ -77,7 +180,7 @@ public class ProductCDCService implements EntityService<ProductDto> {
             log.error("Fix an issue and try again processNextCDCChunk() without DB operations.", exx);
             throw new RuntimeException(exx);
         } catch (TimeoutException e) {
-            throw new IllegalStateException("Increase timeout and try again processNextCDCChunk() without DB operations.");
+            throw new CDCTimeoutException("Increase timeout and try again processNextCDCChunk() without DB operations.");
         }
     }
 }
@@ -0,0 +1,93 @@
+package org.rent.app.service;
+
+import org.elasticsearch.index.query.QueryBuilders;
+import org.rent.app.domain.ProductELK;
+import org.rent.app.repository.ProductELKRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * ProductIndexRouting
+ * <p>
+ * The routing of the product index. By default documents are routed by id and every search asks all shards.
+ * With {@code elasticsearch.routing.product=category} the CDC sink routes a product by its category,
+ * so a search filtered by a category asks the one shard that holds the category.
+ * </p>
+ * <p>
+ * A get by id needs the routing value, which the caller does not know.
+ * With custom routing a product is found by an ids search on all shards instead. Unlike a get, a search
+ * sees only refreshed documents; writers of the sync profile wait for the refresh of their changes.
+ * </p>
+ */
+@Service
+public class ProductIndexRouting {
+    @Value("${elasticsearch.routing.product:}")
+    private String property;
+
+    @Autowired
+    private ElasticsearchOperations operations;
+    @Autowired
+    private ProductELKRepository elkRepository;
+    @Autowired
+    private Environment environment;
+
+    @PostConstruct
+    private void init() {
+        if (property.isBlank()) {
+            property = null;
+            return;
+        }
+        if (!environment.acceptsProfiles(Profiles.of("sync"))) {
+            // the repository of the vanilla profile saves documents routed by id
+            throw new IllegalStateException("elasticsearch.routing.product requires the sync profile");
+        }
+    }
+
+    /**
+     * @return the ProductELK property that routes the documents or null if they are routed by id
+     */
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * @param value - the value of a filter on the property or null
+     * @return the routing of a search filtered by the property or null if the search must ask all shards
+     */
+    public String route(String filterProperty, Object value) {
+        return Objects.nonNull(value) && filterProperty.equals(property) ? String.valueOf(value) : null;
+    }
+
+    /**
+     * @return the routing value of the document or null if it is routed by id
+     */
+    public String routingOf(ProductELK document) {
+        if (Objects.isNull(property)) {
+            return null;
+        }
+        var entity = operations.getElasticsearchConverter().getMappingContext().getRequiredPersistentEntity(ProductELK.class);
+        return Objects.toString(entity.getPropertyAccessor(document).getProperty(entity.getRequiredPersistentProperty(property)), null);
+    }
+
+    public Optional<ProductELK> findById(Long id) {
+        Objects.requireNonNull(id);
+        if (Objects.isNull(property)) {
+            return elkRepository.findById(id);
+        }
+        var query = new NativeSearchQueryBuilder()
+                .withQuery(QueryBuilders.idsQuery().addIds(id.toString()))
+                .withMaxResults(1)
+                .build();
+        return Optional.ofNullable(operations.searchOne(query, ProductELK.class)).map(SearchHit::getContent);
+    }
+}
@@ -27,6 +27,17 @@ public class ProductMapper {
                 .build();
     }
 
+    public static ProductDto jpa2dto(ProductDB prod) {
+        return ProductDto.builder()
+                .id(prod.getId())
+                .category(prod.getCategory()).brand(prod.getBrand())
+                .name(prod.getName()).description(prod.getDescription())
+                .price(prod.getPrice())
+                .owner(prod.getOwner())
+                .updated(prod.getUpdated())
+                .build();
+    }
+
     public static ProductDto elk2dto(ProductELK prod) {
         return ProductDto.builder()
                 .id(prod.getId())
@@ -35,6 +46,8 @@ public class ProductMapper {
                 .price(prod.getPrice())
                 .owner(prod.getOwner())
                 .updated(prod.getUpdated())
+                .categoryName(prod.getCategoryName())
+                .ownerName(prod.getOwnerName())
                 .build();
     }
 }
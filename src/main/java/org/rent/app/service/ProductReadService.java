@@ -0,0 +1,104 @@
+package org.rent.app.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.rent.app.domain.cdc.Lsn;
+import org.rent.app.dto.ProductDto;
+import org.rent.app.repository.ProductJPARepository;
+import org.rent.app.service.cdc.TestDecodingCDCService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * ProductReadService
+ * <p>
+ * Point reads with read-your-writes consistency.
+ * A write returns a token, the WAL lsn after the write. A read with the token goes to the index
+ * if the CDC pipeline has applied all transactions committed before the token, otherwise to the database.
+ * So a client never sees a version older than its own write, and most reads still hit the index.
+ * A read without a token goes to the index.
+ * </p>
+ * <p>
+ * A routed index is read by an ids search, which sees only refreshed documents (see {@link ProductIndexRouting}).
+ * Then a read with a token goes to the index only if a refresh has covered the token, not just the acknowledgement:
+ * background, heartbeat and catch-up processing do not refresh.
+ * </p>
+ * <p>
+ * Without the sync profile the index is written together with the database, there are no tokens.
+ * </p>
+ */
+@Slf4j
+@Service
+public class ProductReadService {
+    @Autowired
+    private ProductJPARepository jpaRepository;
+    @Autowired
+    private ProductIndexRouting routing;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired(required = false)
+    private TestDecodingCDCService cdcService;
+
+    private Counter indexReads;
+    private Counter databaseReads;
+
+    @PostConstruct
+    private void init() {
+        indexReads = meterRegistry.counter("product.read", "source", "index");
+        databaseReads = meterRegistry.counter("product.read", "source", "database");
+    }
+
+    /*
+     * the token captured by the last write of the request thread
+     */
+    private final ThreadLocal<Lsn> capturedToken = new ThreadLocal<>();
+
+    /**
+     * Capture the token of a write right after its commit, before the writer processes the pipeline.
+     * The processing applies everything committed before its start, so the applied lsn reaches this token
+     * and reads with it go to the index. A token read later may cover other writes and stay ahead of the index.
+     */
+    public void captureWriteToken() {
+        if (Objects.nonNull(cdcService)) capturedToken.set(cdcService.getCurrentWalLsn());
+    }
+
+    /**
+     * @return the captured token of the last write or the token of writes committed before the call,
+     * null if there is no CDC pipeline
+     */
+    public Lsn getWriteToken() {
+        if (Objects.isNull(cdcService)) {
+            return null;
+        }
+        Lsn token = capturedToken.get();
+        capturedToken.remove();
+        return Objects.nonNull(token) ? token : cdcService.getCurrentWalLsn();
+    }
+
+    /**
+     * @param minLsn - the token of the caller's last write or null
+     */
+    public Optional<ProductDto> findById(Long id, Lsn minLsn) {
+        Objects.requireNonNull(id);
+        if (Objects.nonNull(minLsn) && Objects.nonNull(cdcService) && getReadableWalLsn().isBefore(minLsn)) {
+            log.debug("The index is behind {}, read product {} from the database", minLsn, id);
+            databaseReads.increment();
+            return jpaRepository.findById(id).map(ProductMapper::jpa2dto);
+        }
+        indexReads.increment();
+        // a get by id is realtime, it does not wait for a refresh. A routed index is searched by ids, see ProductIndexRouting
+        return routing.findById(id).map(ProductMapper::elk2dto);
+    }
+
+    /*
+     * a get sees acknowledged documents, a search only refreshed ones
+     */
+    private Lsn getReadableWalLsn() {
+        return Objects.isNull(routing.getProperty()) ? cdcService.getAppliedWalLsn() : cdcService.getRefreshedWalLsn();
+    }
+}
@@ -0,0 +1,86 @@
+package org.rent.app.service;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.rent.app.domain.ProductELK;
+import org.rent.app.dto.ProductDto;
+import org.rent.app.dto.ProductSearchQuery;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * ProductSearchService
+ * <p>
+ * Catalog search: category listings, brand pages and full text search.
+ * With the sync profile the results are cached in {@link SearchResultCache} and stay fresh within one CDC chunk.
+ * </p>
+ */
+@Service
+public class ProductSearchService {
+    @Autowired
+    private ElasticsearchOperations operations;
+    @Autowired
+    private ProductIndexRouting routing;
+    @Autowired(required = false)
+    private SearchResultCache cache;
+
+    public List<ProductDto> search(ProductSearchQuery query) {
+        var normalized = query.normalize();
+        if (Objects.isNull(cache)) {
+            return doSearch(normalized);
+        }
+        return cache.get(normalized, tags(normalized), () -> doSearch(normalized));
+    }
+
+    /*
+     * the filters define which changes affect the result
+     */
+    private static Set<String> tags(ProductSearchQuery query) {
+        Set<String> tags = new HashSet<>();
+        if (Objects.nonNull(query.category())) {
+            tags.add(SearchResultCache.tag(ProductELK.class, "category", query.category()));
+        }
+        if (Objects.nonNull(query.brand())) {
+            tags.add(SearchResultCache.tag(ProductELK.class, "brand", query.brand()));
+        }
+        if (tags.isEmpty()) {
+            tags.add(SearchResultCache.tagAll(ProductELK.class));
+        }
+        tags.add(SearchResultCache.tagDocument(ProductELK.class));
+        return tags;
+    }
+
+    private List<ProductDto> doSearch(ProductSearchQuery query) {
+        BoolQueryBuilder bool = QueryBuilders.boolQuery();
+        if (Objects.nonNull(query.text())) {
+            bool.must(QueryBuilders.multiMatchQuery(query.text(), "name", "description", "brand").operator(Operator.AND));
+        }
+        if (Objects.nonNull(query.category())) {
+            bool.filter(QueryBuilders.termQuery("category", query.category()));
+        }
+        if (Objects.nonNull(query.brand())) {
+            // an exact filter, its value is the tag of the result
+            bool.filter(QueryBuilders.termQuery("brand.keyword", query.brand()));
+        }
+        var searchQuery = new NativeSearchQueryBuilder()
+                .withQuery(bool)
+                .withPageable(PageRequest.of(query.page(), query.size()))
+                .build();
+        // a category page asks one shard if products are routed by category
+        searchQuery.setRoute(routing.route("category", query.category()));
+        return operations.search(searchQuery, ProductELK.class).stream()
+                .map(SearchHit::getContent)
+                .map(ProductMapper::elk2dto)
+                .toList();
+    }
+}
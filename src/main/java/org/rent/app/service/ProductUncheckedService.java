@@ -1,11 +1,15 @@
 package org.rent.app.service;
 
 import org.rent.app.domain.ProductDB;
-import org.rent.app.repository.ProductELKRepository;
+import org.rent.app.domain.ProductELK;
+import org.rent.app.service.cdc.ElasticsearchBulkSink;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+import java.util.Set;
+
 import static org.rent.app.service.ProductMapper.jpa2elk;
 
 /**
@@ -21,7 +25,9 @@ import static org.rent.app.service.ProductMapper.jpa2elk;
 @Profile("sync")
 public class ProductUncheckedService implements UncheckedEntityService<ProductDB> {
     @Autowired
-    private ProductELKRepository elkRepository;
+    private ElasticsearchBulkSink sink;
+    @Autowired
+    private ProductIndexRouting routing;
 
     @Override
     public Class<ProductDB> getEntityClass() {
@@ -29,17 +35,57 @@ public class ProductUncheckedService implements UncheckedEntityService<ProductDB
     }
 
     @Override
-    public void create(Object jpaEntity) {
-        elkRepository.save(jpa2elk((ProductDB) jpaEntity));
+    public Class<ProductELK> getDocumentClass() {
+        return ProductELK.class;
+    }
+
+    /*
+     * dashboards read per category and per owner summaries instead of aggregating the product index
+     */
+    @Override
+    public List<AggregateProjection> getProjections() {
+        return List.of(
+                new AggregateProjection("product_by_category", "category", List.of("price")),
+                new AggregateProjection("product_by_owner", "owner", List.of()));
+    }
+
+    /*
+     * category listings and brand pages are cached
+     */
+    @Override
+    public Set<String> getCacheTagProperties() {
+        return Set.of("category", "brand");
+    }
+
+    /*
+     * product pages show the category name and the owner display name
+     */
+    @Override
+    public List<Enrichment> getEnrichments() {
+        return List.of(
+                new Enrichment("categoryName", "category", "category", "id", "name"),
+                new Enrichment("ownerName", "owner", "owner", "id", "display_name"));
+    }
+
+    @Override
+    public String getRoutingProperty() {
+        return routing.getProperty();
+    }
+
+    @Override
+    public void create(Object jpaEntity, long version) {
+        var elkEntity = jpa2elk((ProductDB) jpaEntity);
+        sink.index(elkEntity.getId(), elkEntity, version);
     }
 
     @Override
-    public void update(Object jpaEntity) {
-        elkRepository.save(jpa2elk((ProductDB) jpaEntity));
+    public void update(Object jpaEntity, long version) {
+        var elkEntity = jpa2elk((ProductDB) jpaEntity);
+        sink.index(elkEntity.getId(), elkEntity, version);
     }
 
     @Override
-    public void delete(Object jpaEntity) {
-        elkRepository.delete(jpa2elk((ProductDB) jpaEntity));
+    public void delete(Object jpaEntity, long version) {
+        sink.delete(ProductELK.class, ((ProductDB) jpaEntity).getId(), version);
     }
 }
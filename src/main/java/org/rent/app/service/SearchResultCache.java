@@ -0,0 +1,159 @@
+package org.rent.app.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * SearchResultCache
+ * <p>
+ * Caches search results by normalized query. Every entry is tagged with the filter values it covers,
+ * e.g. {@code ProductELK.category=2}. The CDC pipeline evicts the entries whose tags match the rows it has indexed,
+ * see {@link UncheckedEntityService#getCacheTagProperties()}.
+ * Queries without filters are tagged with {@link #tagAll(Class)} and are evicted by any change of the document class.
+ * Every entry is tagged with {@link #tagDocument(Class)}, it evicts all results of the document class.
+ * </p>
+ * <p>
+ * The cache holds up to {@code search-cache.max-entries} entries, the least recently used are evicted first.
+ * Entries older than {@code search-cache.ttl-sec} are not returned, that bounds staleness if an eviction is missed.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class SearchResultCache {
+    private static final String ALL = "*";
+
+    @Value("${search-cache.max-entries:10000}")
+    private int maxEntries;
+    @Value("${search-cache.ttl-sec:300}")
+    private long ttlSec;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private record Entry(Object value, Set<String> tags, long createdNanos) {
+    }
+
+    /*
+     * guarded by this
+     */
+    private final Map<Object, Entry> entries = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+            if (size() > maxEntries) {
+                unindex(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Map<String, Set<Object>> keysByTag = new HashMap<>(); // guarded by this
+    private long generation = 0; // incremented by every eviction, guarded by this
+
+    private Counter hits;
+    private Counter misses;
+    private Counter evictions;
+
+    @PostConstruct
+    private void init() {
+        hits = meterRegistry.counter("search.cache", "result", "hit");
+        misses = meterRegistry.counter("search.cache", "result", "miss");
+        evictions = meterRegistry.counter("search.cache", "result", "evicted");
+    }
+
+    public static String tag(Class<?> documentClass, String property, Object value) {
+        return documentClass.getSimpleName() + "." + property + "=" + value;
+    }
+
+    public static String tagAll(Class<?> documentClass) {
+        return documentClass.getSimpleName() + "." + ALL;
+    }
+
+    public static String tagDocument(Class<?> documentClass) {
+        return documentClass.getSimpleName();
+    }
+
+    /**
+     * Get the cached result or load and cache it.
+     * The loader is called without the lock, concurrent misses of the same key may load twice.
+     * A result loaded while an eviction happened is returned but not cached.
+     *
+     * @param key  - normalized query
+     * @param tags - filter values covered by the result
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Set<String> tags, Supplier<T> loader) {
+        long now = System.nanoTime();
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (Objects.nonNull(entry) && now - entry.createdNanos() < ttlSec * 1_000_000_000L) {
+                hits.increment();
+                return (T) entry.value();
+            }
+            loadGeneration = generation;
+        }
+        misses.increment();
+        T value = loader.get();
+        synchronized (this) {
+            if (loadGeneration != generation) {
+                // the result may have been loaded before the eviction, it is not cached
+                return value;
+            }
+            Entry previous = entries.put(key, new Entry(value, tags, now));
+            if (Objects.nonNull(previous)) unindex(key, previous);
+            tags.forEach(tag -> keysByTag.computeIfAbsent(tag, x -> new HashSet<>()).add(key));
+        }
+        return value;
+    }
+
+    /**
+     * Evict the entries tagged with any of the tags.
+     */
+    public synchronized void evict(Collection<String> tags) {
+        if (tags.isEmpty()) {
+            return;
+        }
+        generation += 1;
+        int count = 0;
+        for (String tag : tags) {
+            Set<Object> keys = keysByTag.remove(tag);
+            if (Objects.isNull(keys)) continue;
+            for (Object key : keys) {
+                Entry entry = entries.remove(key);
+                if (Objects.nonNull(entry)) {
+                    unindex(key, entry);
+                    count += 1;
+                }
+            }
+        }
+        if (count > 0) {
+            evictions.increment(count);
+            log.debug("Evicted {} search results by {} tags", count, tags.size());
+        }
+    }
+
+    private void unindex(Object key, Entry entry) {
+        for (String tag : entry.tags()) {
+            Set<Object> keys = keysByTag.get(tag);
+            if (Objects.nonNull(keys) && keys.remove(key) && keys.isEmpty()) {
+                keysByTag.remove(tag);
+            }
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package org.rent.app.service;
 
+import java.util.List;
+import java.util.Set;
+
 /**
  * UncheckedEntityService
  * <p>
@@ -7,6 +10,11 @@ package org.rent.app.service;
  * to upload JPA data from WAL into the index.
  * Implement this interface for a JPA class if this class  must be in sync with ELK
  *
+ * If {@link #getDocumentClass()} returns an ELK document class,
+ * TransactionOperationProcessor writes the document straight from the column values of CDC record
+ * and the methods create/update/delete are not called.
+ * The document properties must have the same names as the JPA entity properties.
+ *
  * </p>
  *
  * @author Sergey Yurkevich ysaspb@gmail.com
@@ -15,9 +23,50 @@ package org.rent.app.service;
 public interface UncheckedEntityService<T> {
     Class<T> getEntityClass();
 
-    void create(Object jpaEntity);
+    /*
+     * ELK document class or null if the JPA entity has to be restored and passed to create/update/delete.
+     */
+    default Class<?> getDocumentClass() {
+        return null;
+    }
+
+    /*
+     * summaries of the entity maintained from the change stream. They require the ELK document class.
+     */
+    default List<AggregateProjection> getProjections() {
+        return List.of();
+    }
+
+    /*
+     * properties whose values tag cached search results of the ELK document, see SearchResultCache.
+     * A change of a row evicts the results tagged with its old and new values. They require the ELK document class.
+     */
+    default Set<String> getCacheTagProperties() {
+        return Set.of();
+    }
+
+    /*
+     * denormalized properties of the ELK document looked up in reference tables, see Enrichment.
+     * They require the ELK document class.
+     */
+    default List<Enrichment> getEnrichments() {
+        return List.of();
+    }
+
+    /*
+     * the ELK document property whose value routes the documents to shards or null to route them by id.
+     * It requires the ELK document class and REPLICA IDENTITY FULL, so a row is deleted from the shard of its old value.
+     */
+    default String getRoutingProperty() {
+        return null;
+    }
+
+    /*
+     * version is the lsn of the CDC record. Use it as the external version of the document.
+     */
+    void create(Object jpaEntity, long version);
 
-    void update(Object jpaEntity);
+    void update(Object jpaEntity, long version);
 
-    void delete(Object entity);
+    void delete(Object entity, long version);
 }
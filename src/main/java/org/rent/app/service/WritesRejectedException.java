@@ -0,0 +1,18 @@
+package org.rent.app.service;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * WritesRejectedException
+ * <p>
+ * A write is rejected because the changes would not be indexed in time, e.g. the replication slot is too far behind.
+ * The client should retry later.
+ * </p>
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class WritesRejectedException extends IllegalStateException {
+    public WritesRejectedException(String message) {
+        super(message);
+    }
+}
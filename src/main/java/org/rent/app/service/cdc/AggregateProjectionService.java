@@ -0,0 +1,462 @@
+package org.rent.app.service.cdc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.cluster.storedscripts.PutStoredScriptRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.Max;
+import org.elasticsearch.search.aggregations.metrics.Min;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.xcontent.XContentType;
+import org.rent.app.domain.cdc.Lsn;
+import org.rent.app.service.AggregateProjection;
+import org.rent.app.service.AggregateSummary;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * AggregateProjectionService
+ * <p>
+ * Maintains summary documents of {@link AggregateProjection}s in the {@code cdc.projection.index} index.
+ * Every INSERT/UPDATE/DELETE adds the new row and subtracts the old row from the summary of its key.
+ * Deltas are summed up in memory per transaction and sent as one scripted upsert per summary
+ * together with the last bulk request of the chunk. Every delta carries the commit lsn of its transaction and
+ * the summary keeps the lsn of the last applied one. The script skips the transactions at or before it,
+ * so a re-scan of WAL does not count rows twice, even if it ends at another lsn than the failed scan.
+ * </p>
+ * <p>
+ * Min and max can not be decremented. If a removed value may be the current min or max,
+ * the summary is marked as stale and {@link #getSummary(String, String)} recomputes them
+ * by an aggregation over the documents with the key. The aggregation does not force a refresh of the document index,
+ * so documents changed within the last refresh interval may be missed or still found. A summary updated less than
+ * {@code cdc.projection.settle-ms} ago stays stale and is recomputed again by the next read.
+ * </p>
+ * <p>
+ * The tables of projections must have {@code REPLICA IDENTITY FULL}, it is checked at startup,
+ * so an UPDATE or DELETE without old values does not stop the pipeline.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class AggregateProjectionService {
+    private static final String SCRIPT_ID = "cdc-aggregate-delta";
+    private static final String SCRIPT = """
+            boolean applied = false;
+            for (def seg : params.segments) {
+              if (ctx._source.lsn >= seg.lsn) { continue; }
+              applied = true;
+              ctx._source.lsn = seg.lsn;
+              ctx._source.count += seg.count;
+              for (def e : seg.metrics.entrySet()) {
+                def d = e.getValue();
+                def s = ctx._source.metrics[e.getKey()];
+                if (s == null) { s = ['count': 0L, 'sum': 0.0, 'min': null, 'max': null]; ctx._source.metrics[e.getKey()] = s; }
+                s.count += d.count;
+                s.sum += d.sum;
+                if (s.count <= 0) { s.count = 0L; s.sum = 0.0; s.min = null; s.max = null; continue; }
+                if (d.removedMin != null && s.min != null && d.removedMin <= s.min) { ctx._source.stale = true; }
+                if (d.removedMax != null && s.max != null && d.removedMax >= s.max) { ctx._source.stale = true; }
+                if (d.addedMin != null && (s.min == null || d.addedMin < s.min)) { s.min = d.addedMin; }
+                if (d.addedMax != null && (s.max == null || d.addedMax > s.max)) { s.max = d.addedMax; }
+              }
+            }
+            if (applied) { ctx._source.updated = ctx._now; } else { ctx.op = 'noop'; }
+            """;
+    private static final String MAPPING = """
+            {"properties":{"projection":{"type":"keyword"},"key":{"type":"keyword"},"count":{"type":"long"},
+            "lsn":{"type":"long"},"stale":{"type":"boolean"},"updated":{"type":"date","format":"epoch_millis"},
+            "metrics":{"type":"object","enabled":false}}}
+            """;
+    private static final String KEY_DELIM = ":";
+
+    @Value("${cdc.projection.index:aggregate_summary}")
+    private String summaryIndex;
+    @Value("${cdc.projection.settle-ms:2000}")
+    private long settleMs;
+
+    @Autowired
+    private RestHighLevelClient client;
+    @Autowired
+    private ElasticsearchOperations operations;
+    @Autowired
+    private ElasticsearchBulkSink sink;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    record CompiledProjection(
+            AggregateProjection projection,
+            Class<?> documentClass,
+            String keyColumn,
+            String keyField, // the field of the key in the ELK document
+            List<String> metricColumns, // in the order of metric properties
+            List<String> metricFields) {
+    }
+
+    private final Map<String, List<CompiledProjection>> projectionsByTableName = new HashMap<>();
+    private final Map<String, CompiledProjection> projectionByName = new HashMap<>();
+    /*
+     * deltas of the current transaction and of the committed transactions of the chunk in commit order,
+     * hashed by summary id. Accessed by the CDC thread only.
+     */
+    private final Map<String, Delta> pending = new LinkedHashMap<>();
+    private final Map<String, List<Delta>> deltas = new LinkedHashMap<>();
+
+    private static final class Delta {
+        private final CompiledProjection projection;
+        private final String key;
+        private Lsn lsn; // the commit lsn of the transaction
+        private long count;
+        private final MetricDelta[] metrics;
+
+        private Delta(CompiledProjection projection, String key) {
+            this.projection = projection;
+            this.key = key;
+            this.metrics = new MetricDelta[projection.metricColumns().size()];
+            for (int i = 0; i < metrics.length; i++) metrics[i] = new MetricDelta();
+        }
+    }
+
+    private static final class MetricDelta {
+        private long count;
+        private double sum;
+        private double addedMin = Double.POSITIVE_INFINITY;
+        private double addedMax = Double.NEGATIVE_INFINITY;
+        private double removedMin = Double.POSITIVE_INFINITY;
+        private double removedMax = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Register projections of a table.
+     *
+     * @param columnByProperty - table columns hashed by JPA property names
+     * @throws IllegalArgumentException if a property has no column or document field
+     * @throws IllegalStateException    if the table does not have REPLICA IDENTITY FULL
+     */
+    public void register(String tableName, Class<?> documentClass, List<AggregateProjection> projections,
+                         Map<String, String> columnByProperty) {
+        if (projections.isEmpty()) {
+            return;
+        }
+        requireFullReplicaIdentity(tableName);
+        if (projectionByName.isEmpty()) {
+            createSummaryIndex();
+        }
+        var entity = operations.getElasticsearchConverter().getMappingContext().getRequiredPersistentEntity(documentClass);
+        for (AggregateProjection projection : projections) {
+            List<String> properties = new ArrayList<>(projection.metricProperties());
+            properties.add(0, projection.keyProperty());
+            List<String> columns = new ArrayList<>();
+            List<String> fields = new ArrayList<>();
+            for (String property : properties) {
+                String column = columnByProperty.get(property);
+                if (Objects.isNull(column)) {
+                    throw new IllegalArgumentException("%s: %s is not mapped to a column".formatted(projection.name(), property));
+                }
+                columns.add(column);
+                fields.add(entity.getRequiredPersistentProperty(property).getFieldName());
+            }
+            var compiled = new CompiledProjection(projection, documentClass, columns.get(0), fields.get(0),
+                    List.copyOf(columns.subList(1, columns.size())), List.copyOf(fields.subList(1, fields.size())));
+            if (Objects.nonNull(projectionByName.putIfAbsent(projection.name(), compiled))) {
+                throw new IllegalArgumentException("Duplicate projection " + projection.name());
+            }
+            projectionsByTableName.computeIfAbsent(tableName, x -> new ArrayList<>()).add(compiled);
+            log.info("Projection {} of table {} is registered", projection.name(), tableName);
+        }
+    }
+
+    /**
+     * Add the delta of an operation to the summaries of its table.
+     *
+     * @throws IllegalStateException if WAL does not contain the old values of the row
+     */
+    public void apply(TransactionOperation op) {
+        var projections = projectionsByTableName.get(op.getTableName());
+        if (Objects.isNull(projections)) {
+            return;
+        }
+        Map<String, String> oldRow = switch (op.getOperationType()) {
+            case INSERT -> null;
+            case UPDATE -> op.getOldColumnValues();
+            case DELETE -> op.getColumnValues();
+            default -> throw new IllegalArgumentException(op.getOperationType().toString());
+        };
+        Map<String, String> newRow = op.getOperationType() == TransactionOperation.OperationType.DELETE ? null : op.getColumnValues();
+        if (op.getOperationType() != TransactionOperation.OperationType.INSERT && Objects.isNull(oldRow)) {
+            throw new IllegalStateException("Old values of table %s are not in WAL. Set REPLICA IDENTITY FULL".formatted(op.getTableName()));
+        }
+        for (CompiledProjection projection : projections) {
+            if (Objects.nonNull(oldRow) && Objects.nonNull(newRow) && !changes(projection, oldRow, newRow)) {
+                continue;
+            }
+            if (Objects.nonNull(oldRow)) add(projection, oldRow, -1, op);
+            if (Objects.nonNull(newRow)) add(projection, newRow, 1, op);
+        }
+    }
+
+    /**
+     * TRUNCATE of a table clears its summaries.
+     * Actions sent before must be acknowledged.
+     */
+    public void truncate(String tableName) {
+        var projections = projectionsByTableName.get(tableName);
+        if (Objects.isNull(projections)) {
+            return;
+        }
+        pending.values().removeIf(delta -> projections.contains(delta.projection));
+        deltas.values().removeIf(segments -> projections.contains(segments.get(0).projection));
+        var names = projections.stream().map(p -> p.projection().name()).toList();
+        try {
+            client.deleteByQuery(new DeleteByQueryRequest(summaryIndex)
+                    .setQuery(QueryBuilders.termsQuery("projection", names))
+                    .setRefresh(true), RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't clear projections " + names, e);
+        }
+    }
+
+    /**
+     * A transaction is committed. Its deltas are stamped with the commit lsn.
+     */
+    public void commit(Lsn lsn) {
+        for (var e : pending.entrySet()) {
+            e.getValue().lsn = lsn;
+            deltas.computeIfAbsent(e.getKey(), id -> new ArrayList<>()).add(e.getValue());
+        }
+        pending.clear();
+    }
+
+    /**
+     * Send the summed up deltas of the chunk.
+     */
+    public void flush() {
+        for (var e : deltas.entrySet()) {
+            List<Delta> segments = e.getValue();
+            sink.update(summaryIndex, e.getKey(), buffer -> writeUpsert(buffer, segments));
+        }
+        deltas.clear();
+    }
+
+    /**
+     * Drop deltas of a failed scan.
+     */
+    public void reset() {
+        pending.clear();
+        deltas.clear();
+    }
+
+    /**
+     * Get the summary of a key. It is a document fetch unless min or max have to be recomputed.
+     *
+     * @param name - projection name
+     * @param key  - the value of the key property
+     * @return the summary or empty if no row with the key has been seen
+     */
+    public Optional<AggregateSummary> getSummary(String name, String key) {
+        var projection = projectionByName.get(name);
+        if (Objects.isNull(projection)) {
+            throw new IllegalArgumentException("Unknown projection " + name);
+        }
+        try {
+            GetResponse res = client.get(new GetRequest(summaryIndex, summaryId(name, key)), RequestOptions.DEFAULT);
+            if (!res.isExists()) {
+                return Optional.empty();
+            }
+            Map<String, Object> source = res.getSourceAsMap();
+            if (Boolean.TRUE.equals(source.get("stale"))) {
+                source = recomputeMinMax(projection, key, res);
+            }
+            return Optional.of(toSummary(name, key, source));
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read summary %s of %s".formatted(key, name), e);
+        }
+    }
+
+    private void requireFullReplicaIdentity(String tableName) {
+        String identity = jdbcTemplate.queryForObject("SELECT cast(relreplident as text) FROM pg_class WHERE oid = cast(? as regclass)",
+                String.class, tableName);
+        if (!"f".equals(identity)) {
+            throw new IllegalStateException("Projections of table %s need the old values of changed rows. Run ALTER TABLE %s REPLICA IDENTITY FULL"
+                    .formatted(tableName, tableName));
+        }
+    }
+
+    private static boolean changes(CompiledProjection projection, Map<String, String> oldRow, Map<String, String> newRow) {
+        if (!Objects.equals(oldRow.get(projection.keyColumn()), newRow.get(projection.keyColumn()))) {
+            return true;
+        }
+        for (String column : projection.metricColumns()) {
+            if (!Objects.equals(oldRow.get(column), newRow.get(column))) return true;
+        }
+        return false;
+    }
+
+    private void add(CompiledProjection projection, Map<String, String> row, int sign, TransactionOperation op) {
+        if (!row.containsKey(projection.keyColumn())) {
+            throw new IllegalStateException("Column %s of table %s is not in WAL. Set REPLICA IDENTITY FULL"
+                    .formatted(projection.keyColumn(), op.getTableName()));
+        }
+        String key = row.get(projection.keyColumn());
+        if (Objects.isNull(key)) {
+            return;
+        }
+        Delta delta = pending.computeIfAbsent(summaryId(projection.projection().name(), key), id -> new Delta(projection, key));
+        delta.count += sign;
+        for (int i = 0; i < delta.metrics.length; i++) {
+            String value = row.get(projection.metricColumns().get(i));
+            if (Objects.isNull(value)) continue;
+            double v = Double.parseDouble(value);
+            MetricDelta metric = delta.metrics[i];
+            metric.count += sign;
+            metric.sum += sign * v;
+            if (sign > 0) {
+                metric.addedMin = Math.min(metric.addedMin, v);
+                metric.addedMax = Math.max(metric.addedMax, v);
+            } else {
+                metric.removedMin = Math.min(metric.removedMin, v);
+                metric.removedMax = Math.max(metric.removedMax, v);
+            }
+        }
+    }
+
+    private static String summaryId(String name, String key) {
+        return name + KEY_DELIM + key;
+    }
+
+    private static void writeUpsert(BulkBuffer buffer, List<Delta> segments) {
+        var first = segments.get(0);
+        var projection = first.projection;
+        buffer.writeAscii("{\"scripted_upsert\":true,\"script\":{\"id\":\"").writeAscii(SCRIPT_ID)
+                .writeAscii("\",\"params\":{\"segments\":[");
+        for (int s = 0; s < segments.size(); s++) {
+            Delta delta = segments.get(s);
+            if (s > 0) buffer.write((byte) ',');
+            buffer.writeAscii("{\"lsn\":").writeLong(delta.lsn.value())
+                    .writeAscii(",\"count\":").writeLong(delta.count)
+                    .writeAscii(",\"metrics\":{");
+            for (int i = 0; i < delta.metrics.length; i++) {
+                MetricDelta metric = delta.metrics[i];
+                if (i > 0) buffer.write((byte) ',');
+                buffer.writeJsonString(projection.metricFields().get(i))
+                        .writeAscii(":{\"count\":").writeLong(metric.count)
+                        .writeAscii(",\"sum\":").writeAscii(Double.toString(metric.sum));
+                writeBound(buffer, "addedMin", metric.addedMin);
+                writeBound(buffer, "addedMax", metric.addedMax);
+                writeBound(buffer, "removedMin", metric.removedMin);
+                writeBound(buffer, "removedMax", metric.removedMax);
+                buffer.write((byte) '}');
+            }
+            buffer.writeAscii("}}");
+        }
+        buffer.writeAscii("]}},\"upsert\":{\"projection\":").writeJsonString(projection.projection().name())
+                .writeAscii(",\"key\":").writeJsonString(first.key)
+                .writeAscii(",\"count\":0,\"lsn\":0,\"stale\":false,\"metrics\":{}}}");
+    }
+
+    private static void writeBound(BulkBuffer buffer, String name, double value) {
+        buffer.writeAscii(",\"").writeAscii(name).writeAscii("\":")
+                .writeAscii(Double.isInfinite(value) ? "null" : Double.toString(value));
+    }
+
+    private Map<String, Object> recomputeMinMax(CompiledProjection projection, String key, GetResponse summary) throws IOException {
+        var documentIndex = operations.getIndexCoordinatesFor(projection.documentClass());
+        var searchSource = new SearchSourceBuilder().size(0).query(QueryBuilders.termQuery(projection.keyField(), key));
+        for (String field : projection.metricFields()) {
+            searchSource.aggregation(AggregationBuilders.min("min_" + field).field(field))
+                    .aggregation(AggregationBuilders.max("max_" + field).field(field));
+        }
+        var aggregations = client.search(new SearchRequest(documentIndex.getIndexNames()).source(searchSource), RequestOptions.DEFAULT)
+                .getAggregations();
+        Map<String, Object> source = summary.getSourceAsMap();
+        @SuppressWarnings("unchecked")
+        var metrics = (Map<String, Map<String, Object>>) source.get("metrics");
+        Map<String, Object> metricsUpdate = new HashMap<>();
+        for (String field : projection.metricFields()) {
+            var metric = metrics.get(field);
+            if (Objects.isNull(metric)) continue;
+            double min = aggregations.<Min>get("min_" + field).getValue();
+            double max = aggregations.<Max>get("max_" + field).getValue();
+            metric.put("min", Double.isInfinite(min) ? null : min);
+            metric.put("max", Double.isInfinite(max) ? null : max);
+            Map<String, Object> minMax = new HashMap<>();
+            minMax.put("min", metric.get("min"));
+            minMax.put("max", metric.get("max"));
+            metricsUpdate.put(field, minMax);
+        }
+        var updated = (Number) source.get("updated");
+        if (Objects.nonNull(updated) && System.currentTimeMillis() - updated.longValue() < settleMs) {
+            // the last changes of the key may be not refreshed yet, the next read recomputes min/max again
+            return source;
+        }
+        source.put("stale", false);
+        try {
+            // the summary is not updated if the CDC thread has changed it since it was read
+            client.update(new UpdateRequest(summaryIndex, summary.getId())
+                    .setIfSeqNo(summary.getSeqNo()).setIfPrimaryTerm(summary.getPrimaryTerm())
+                    .doc(Map.of("stale", false, "metrics", metricsUpdate)), RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.CONFLICT) throw e;
+            log.debug("Summary {} is changed while min/max are recomputed", summary.getId());
+        }
+        return source;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AggregateSummary toSummary(String name, String key, Map<String, Object> source) {
+        Map<String, AggregateSummary.Metric> metrics = new LinkedHashMap<>();
+        ((Map<String, Map<String, Object>>) source.get("metrics")).forEach((field, metric) -> metrics.put(field,
+                new AggregateSummary.Metric(
+                        ((Number) metric.get("count")).longValue(),
+                        ((Number) metric.get("sum")).doubleValue(),
+                        toDouble(metric.get("min")),
+                        toDouble(metric.get("max")))));
+        return new AggregateSummary(name, key, ((Number) source.get("count")).longValue(), metrics);
+    }
+
+    private static Double toDouble(Object value) {
+        return Objects.isNull(value) ? null : ((Number) value).doubleValue();
+    }
+
+    private void createSummaryIndex() {
+        var indexOps = operations.indexOps(IndexCoordinates.of(summaryIndex));
+        if (!indexOps.exists()) {
+            indexOps.create();
+            indexOps.putMapping(Document.parse(MAPPING));
+        }
+        String content = new BulkBuffer(SCRIPT.length() + 64)
+                .writeAscii("{\"script\":{\"lang\":\"painless\",\"source\":").writeJsonString(SCRIPT).writeAscii("}}")
+                .toString();
+        try {
+            client.putScript(new PutStoredScriptRequest().id(SCRIPT_ID).content(new BytesArray(content), XContentType.JSON),
+                    RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't store script " + SCRIPT_ID, e);
+        }
+    }
+}
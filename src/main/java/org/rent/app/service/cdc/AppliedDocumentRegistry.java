@@ -0,0 +1,100 @@
+package org.rent.app.service.cdc;
+
+import org.rent.app.domain.cdc.Lsn;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * AppliedDocumentRegistry
+ * <p>
+ * Passes documents indexed by the CDC pipeline to writers waiting for them.
+ * A writer watches its row (JPA entity class and id) before it calls processNextCDCChunk(),
+ * the pipeline publishes the indexed state of watched rows only.
+ * After processNextCDCChunk() the writer takes the latest published state of its row
+ * and reads the index only if the pipeline has not seen the row,
+ * e.g. it was processed by a concurrent call before the watch was registered.
+ * </p>
+ * <p>
+ * Only rows written by compiled {@link NdjsonDocumentWriter}s are published.
+ * </p>
+ */
+@Service
+@Profile("sync")
+public class AppliedDocumentRegistry {
+    /**
+     * @param lsn           - lsn of the CDC record
+     * @param operationType - INSERT, UPDATE or DELETE
+     * @param document      - ELK document as it is indexed, null for DELETE
+     */
+    public record AppliedDocument(Lsn lsn, TransactionOperation.OperationType operationType, Object document) {
+    }
+
+    private record Key(Class<?> entityClass, String id) {
+    }
+
+    private static final class Entry {
+        private int watchers = 0;
+        private volatile AppliedDocument document;
+    }
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Start watching a row. Close the watch after use.
+     */
+    public Watch watch(Class<?> entityClass, Object id) {
+        Key key = new Key(entityClass, String.valueOf(Objects.requireNonNull(id)));
+        entries.compute(key, (k, entry) -> {
+            Entry res = Objects.nonNull(entry) ? entry : new Entry();
+            res.watchers += 1;
+            return res;
+        });
+        return new Watch(key);
+    }
+
+    public boolean isWatched(Class<?> entityClass, String id) {
+        // the map is empty most of the time, e.g. during backfills
+        return !entries.isEmpty() && entries.containsKey(new Key(entityClass, id));
+    }
+
+    /**
+     * Publish the indexed state of a watched row. Older states are ignored.
+     *
+     * @param document - supplies ELK document, it is called only if the row is watched
+     */
+    public void publish(Class<?> entityClass, String id, Lsn lsn, TransactionOperation.OperationType operationType,
+                        Supplier<Object> document) {
+        entries.computeIfPresent(new Key(entityClass, id), (k, entry) -> {
+            if (Objects.isNull(entry.document) || lsn.isAfter(entry.document.lsn())) {
+                entry.document = new AppliedDocument(lsn, operationType,
+                        operationType == TransactionOperation.OperationType.DELETE ? null : document.get());
+            }
+            return entry;
+        });
+    }
+
+    public class Watch implements AutoCloseable {
+        private final Key key;
+
+        private Watch(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the latest state of the row indexed by the pipeline while the row is watched, if any
+         */
+        public Optional<AppliedDocument> getAppliedDocument() {
+            return Optional.ofNullable(entries.get(key)).map(entry -> entry.document);
+        }
+
+        @Override
+        public void close() {
+            entries.computeIfPresent(key, (k, entry) -> --entry.watchers > 0 ? entry : null);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.rent.app.service.cdc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * AppliedLsnIndex
+ * <p>
+ * Keeps the lsn of the last operation applied to every row, so a stale or a duplicate operation
+ * (a chunk read again after a restart) is skipped before it is indexed.
+ * There is a {@link LongLongMappedMap} per table in {@code cdc.lsn-map.dir}, only tables with numeric ids are tracked.
+ * </p>
+ * <p>
+ * The lsns of a chunk are kept on the heap until the index acknowledges the chunk and then written into the maps,
+ * so a map never runs ahead of the index. A map that lost its last pages in a crash only holds older lsns,
+ * and the external versioning of the index drops what is applied again.
+ * </p>
+ * <p>
+ * A map is about the documents of one concrete index, its uuid is the owner of the map.
+ * If the index was recreated, restored or swapped while the application was down, the lsns describe documents
+ * that are gone and the map is cleared on start, otherwise the operations that rebuild the index would be skipped.
+ * </p>
+ * <p>
+ * A delete of the {@link PriorityLane} is applied to the index ahead of the pipeline. Its version is recorded here,
+ * so the older operations drained later are skipped as stale. The tombstone of the delete in the index would do the same,
+ * but Elasticsearch discards tombstones after {@code index.gc_deletes} (60s by default), and a backlog may take longer.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class AppliedLsnIndex {
+    private static final Set<Class<?>> NUMERIC_IDS = Set.of(Long.class, Integer.class, Short.class, long.class, int.class, short.class);
+
+    @Value("${cdc.lsn-map.enabled:true}")
+    private boolean enabled;
+    @Value("${cdc.lsn-map.dir:data/lsn-map}")
+    private Path dir;
+    @Value("${cdc.lsn-map.expected-keys:1000000}")
+    private long expectedKeys;
+
+    private final Map<String, LongLongMappedMap> mapByTableName = new HashMap<>();
+    /*
+     * lsns of the current chunk hashed by table name. Accessed by the CDC thread only.
+     */
+    private final Map<String, Map<Long, Long>> pendingByTableName = new HashMap<>();
+    /*
+     * deletes acknowledged by the index out of lsn order. Added on any thread, written into the maps by the CDC thread.
+     */
+    private final ConcurrentLinkedQueue<OutOfOrder> outOfOrder = new ConcurrentLinkedQueue<>();
+
+    private record OutOfOrder(String tableName, long id, long lsn) {
+    }
+
+    /**
+     * Track the table if its id is numeric.
+     *
+     * @param idType    - java type of the table id
+     * @param indexUuid - uuid of the index the table is written into or null if there is no index yet
+     */
+    public void register(String tableName, Class<?> idType, String indexUuid) {
+        if (!enabled || !NUMERIC_IDS.contains(idType)) {
+            return;
+        }
+        try {
+            var map = LongLongMappedMap.open(dir.resolve(tableName + ".lsnmap"), expectedKeys);
+            String owner = Objects.requireNonNullElse(indexUuid, "");
+            if (!map.getOwner().equals(owner)) {
+                if (map.size() > 0 || map.getFloor() != LongLongMappedMap.NO_VALUE) {
+                    log.warn("Lsn map of table {} belongs to index {}, the index is {} now. Clear the map",
+                            tableName, map.getOwner(), owner);
+                }
+                map.clear(LongLongMappedMap.NO_VALUE);
+                map.setOwner(owner);
+            }
+            mapByTableName.put(tableName, map);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not open lsn map of table " + tableName, ex);
+        }
+    }
+
+    /**
+     * @return true if an operation at this or a later lsn has been applied to the row
+     */
+    public boolean isStale(String tableName, String id, long lsn) {
+        var map = mapByTableName.get(tableName);
+        if (Objects.isNull(map) || Objects.isNull(id)) {
+            return false;
+        }
+        if (!outOfOrder.isEmpty()) {
+            applyOutOfOrder();
+        }
+        long key = Long.parseLong(id);
+        long applied = Math.max(map.getFloor(), map.get(key));
+        Long pending = pendingByTableName.getOrDefault(tableName, Map.of()).get(key);
+        // an out of order delete may be after the pending lsn
+        return lsn <= (Objects.nonNull(pending) ? Math.max(pending, applied) : applied);
+    }
+
+    /**
+     * A document of the row is deleted from the index out of lsn order and the index acknowledged it.
+     * Operations on the row at or before the version are stale from now on. May be called on any thread.
+     *
+     * @param version - the external version of the delete
+     */
+    public void deletedOutOfOrder(String tableName, String id, long version) {
+        // the maps are registered at startup and are not changed later
+        if (Objects.isNull(id) || !mapByTableName.containsKey(tableName)) {
+            return;
+        }
+        outOfOrder.add(new OutOfOrder(tableName, Long.parseLong(id), version));
+    }
+
+    /*
+     * the deletes are acknowledged, they are written into the maps at once and survive a failed chunk
+     */
+    private void applyOutOfOrder() {
+        OutOfOrder delete;
+        while (Objects.nonNull(delete = outOfOrder.poll())) {
+            var map = mapByTableName.get(delete.tableName());
+            try {
+                if (map.get(delete.id()) < delete.lsn()) map.put(delete.id(), delete.lsn());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    public void applied(String tableName, String id, long lsn) {
+        if (Objects.isNull(id) || !mapByTableName.containsKey(tableName)) {
+            return;
+        }
+        pendingByTableName.computeIfAbsent(tableName, t -> new HashMap<>()).put(Long.parseLong(id), lsn);
+    }
+
+    /**
+     * The index acknowledged the chunk. Write its lsns into the maps.
+     */
+    public void commit() {
+        pendingByTableName.forEach((tableName, pending) -> {
+            var map = mapByTableName.get(tableName);
+            try {
+                for (var e : pending.entrySet()) map.put(e.getKey(), e.getValue());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        pendingByTableName.clear();
+    }
+
+    /**
+     * Drop the lsns of a chunk that has not been acknowledged.
+     */
+    public void reset() {
+        pendingByTableName.clear();
+    }
+
+    /**
+     * All rows of the table are deleted at lsn.
+     *
+     * @param indexUuid - uuid of the new empty index of the table
+     */
+    public void truncate(String tableName, long lsn, String indexUuid) {
+        var map = mapByTableName.get(tableName);
+        if (Objects.isNull(map)) {
+            return;
+        }
+        pendingByTableName.remove(tableName);
+        try {
+            map.clear(lsn);
+            map.setOwner(Objects.requireNonNullElse(indexUuid, ""));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @PreDestroy
+    private void close() {
+        mapByTableName.forEach((tableName, map) -> {
+            try {
+                map.close();
+            } catch (IOException ex) {
+                log.warn("Could not close lsn map of table {}", tableName, ex);
+            }
+        });
+    }
+}
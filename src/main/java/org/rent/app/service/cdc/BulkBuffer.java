@@ -0,0 +1,134 @@
+package org.rent.app.service.cdc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * BulkBuffer
+ * <p>
+ * A growable byte buffer with the body of a bulk request in NDJSON format.
+ * Buffers are pooled by {@link ElasticsearchBulkSink} and reused after the request is acknowledged,
+ * so the hot path writes UTF-8 bytes without intermediate strings and documents.
+ * </p>
+ */
+public class BulkBuffer {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] bytes;
+    private int size = 0;
+    private int actions = 0;
+
+    public BulkBuffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int actions() {
+        return actions;
+    }
+
+    public void reset() {
+        size = 0;
+        actions = 0;
+    }
+
+    /**
+     * Mark the end of an action (an action line and an optional source line).
+     */
+    public void endAction() {
+        actions += 1;
+    }
+
+    public BulkBuffer write(byte b) {
+        ensureCapacity(1);
+        bytes[size++] = b;
+        return this;
+    }
+
+    public BulkBuffer write(byte[] b) {
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, bytes, size, b.length);
+        size += b.length;
+        return this;
+    }
+
+    /**
+     * Write chars that are known to be ASCII: numbers, booleans, field names.
+     */
+    public BulkBuffer writeAscii(CharSequence s) {
+        int len = s.length();
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            bytes[size++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    public BulkBuffer writeLong(long value) {
+        return writeAscii(Long.toString(value));
+    }
+
+    /**
+     * Write a quoted and escaped JSON string encoded in UTF-8.
+     */
+    public BulkBuffer writeJsonString(CharSequence s) {
+        int len = s.length();
+        // the worst case is 6 bytes per char (\\u00XX), but usually strings are short
+        ensureCapacity(len * 3 + 2);
+        bytes[size++] = '"';
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    ensureCapacity(2 + (len - i) * 3);
+                    bytes[size++] = '\\';
+                    bytes[size++] = (byte) c;
+                } else if (c < 0x20) {
+                    ensureCapacity(6 + (len - i) * 3);
+                    bytes[size++] = '\\';
+                    bytes[size++] = 'u';
+                    bytes[size++] = '0';
+                    bytes[size++] = '0';
+                    bytes[size++] = HEX[c >> 4];
+                    bytes[size++] = HEX[c & 0xF];
+                } else {
+                    bytes[size++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                bytes[size++] = (byte) (0xC0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                bytes[size++] = (byte) (0xF0 | (cp >> 18));
+                bytes[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                bytes[size++] = (byte) (0xE0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        ensureCapacity(1);
+        bytes[size++] = '"';
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, size + extra));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.rent.app.service.cdc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * CDCEvents
+ * <p>
+ * Java Flight Recorder events of the CDC pipeline stages. They are shown in JDK Mission Control
+ * under the {@code CDC} category next to GC and I/O events. An event costs a few field writes if recording is on
+ * and a check of a flag if it is off, so they are enabled by default and have no stack traces.
+ * Lsn fields are lsn values as bytes from {@code 0/0}.
+ * </p>
+ * <pre>
+ * java -XX:StartFlightRecording=filename=cdc.jfr,settings=profile -jar jpacdc-1.0-SNAPSHOT.jar
+ * jfr print --categories CDC cdc.jfr
+ * </pre>
+ */
+public final class CDCEvents {
+    private static final String CATEGORY = "CDC";
+
+    private CDCEvents() {
+    }
+
+    @Name("org.rent.cdc.ChunkScan")
+    @Label("Chunk Scan")
+    @Category(CATEGORY)
+    @Description("A chunk of the slot is read, parsed, applied and acknowledged by the index")
+    @StackTrace(false)
+    public static class ChunkScan extends Event {
+        @Label("First Lsn")
+        public long firstLsn;
+        @Label("Last Lsn")
+        public long lastLsn;
+        @Label("Records")
+        public long records;
+        @Label("Transactions")
+        public int transactions;
+        @Label("Max Changes")
+        public int maxChanges;
+        @Label("Catch-Up")
+        public boolean catchUp;
+        @Label("Wait For Refresh")
+        public boolean waitForRefresh;
+    }
+
+    @Name("org.rent.cdc.ParseBatch")
+    @Label("Parse Batch")
+    @Category(CATEGORY)
+    @Description("A batch of records is parsed")
+    @StackTrace(false)
+    public static class ParseBatch extends Event {
+        @Label("First Lsn")
+        public long firstLsn;
+        @Label("Last Lsn")
+        public long lastLsn;
+        @Label("Records")
+        public int records;
+        @Label("Operations")
+        public int operations;
+        @Label("Data Size")
+        @DataAmount
+        public long dataBytes; // characters of the data column
+    }
+
+    @Name("org.rent.cdc.TransactionApply")
+    @Label("Transaction Apply")
+    @Category(CATEGORY)
+    @Description("Operations of a transaction are passed to the sink, from BEGIN to COMMIT")
+    @StackTrace(false)
+    public static class TransactionApply extends Event {
+        @Label("Xid")
+        public long xid;
+        @Label("Begin Lsn")
+        public long beginLsn;
+        @Label("Commit Lsn")
+        public long commitLsn;
+        @Label("Operations")
+        public int operations;
+    }
+
+    @Name("org.rent.cdc.Restore")
+    @Label("Restore")
+    @Category(CATEGORY)
+    @Description("A JPA entity is restored with the restore SQL statement")
+    @StackTrace(false)
+    public static class Restore extends Event {
+        @Label("Table")
+        public String table;
+        @Label("Lsn")
+        public long lsn;
+        @Label("Operation")
+        public String operation;
+    }
+
+    @Name("org.rent.cdc.SinkRequest")
+    @Label("Sink Request")
+    @Category(CATEGORY)
+    @Description("A bulk request from sending to its completion")
+    @StackTrace(false)
+    public static class SinkRequest extends Event {
+        @Label("Lsn")
+        @Description("All transactions committed before or at this lsn are in this or previous bulk requests")
+        public long lsn;
+        @Label("Actions")
+        public int actions;
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+        @Label("Wait For Refresh")
+        public boolean waitForRefresh;
+        @Label("Failed")
+        public boolean failed;
+    }
+
+    @Name("org.rent.cdc.SlotCleanup")
+    @Label("Slot Cleanup")
+    @Category(CATEGORY)
+    @Description("Processed records are consumed from the slot")
+    @StackTrace(false)
+    public static class SlotCleanup extends Event {
+        @Label("Up To Lsn")
+        public long uptoLsn;
+        @Label("Records")
+        public long records;
+    }
+}
@@ -0,0 +1,118 @@
+package org.rent.app.service.cdc;
+
+import org.rent.app.domain.cdc.CDCRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * CDCParseStage
+ * <p>
+ * Parses CDC records on the {@code cdcParseTaskExecutor} pool.
+ * Records are grouped into batches of {@code cdc.parse.batch-size}, batches are parsed in parallel
+ * and handed off to the applier in the order they were read, so the applier sees records in lsn order.
+ * Up to {@code cdc.parse.max-batches-in-flight} batches are parsed at the same time,
+ * the reading thread applies the oldest batch when this limit is reached.
+ * </p>
+ */
+@Service
+@Profile("sync")
+public class CDCParseStage {
+    @Value("${cdc.parse.batch-size:256}")
+    private int batchSize;
+    @Value("${cdc.parse.max-batches-in-flight:8}")
+    private int maxBatchesInFlight;
+
+    @Autowired
+    @Qualifier("cdcParseTaskExecutor")
+    private AsyncTaskExecutor parseExecutor;
+
+    /**
+     * Open a parse session for a scan of WAL.
+     *
+     * @param parser  - the parser
+     * @param applier - receives parsed records in lsn order on the thread that calls the session
+     * @return the session. Records are passed to {@link Session#accept(CDCRecord)}, the end of the scan is marked by {@link Session#finish()}
+     */
+    public Session open(TestDecodingParser parser, Consumer<ParsedCDCRecord> applier) {
+        return new Session(parser, applier);
+    }
+
+    public class Session implements Consumer<CDCRecord>, AutoCloseable {
+        private final TestDecodingParser parser;
+        private final Consumer<ParsedCDCRecord> applier;
+        private final Deque<Future<List<ParsedCDCRecord>>> inFlight = new ArrayDeque<>();
+        private List<CDCRecord> batch = new ArrayList<>(batchSize);
+
+        private Session(TestDecodingParser parser, Consumer<ParsedCDCRecord> applier) {
+            this.parser = parser;
+            this.applier = applier;
+        }
+
+        @Override
+        public void accept(CDCRecord record) {
+            batch.add(record);
+            if (batch.size() >= batchSize) {
+                submit();
+            }
+        }
+
+        /**
+         * Parse and apply all accepted records.
+         */
+        public void finish() {
+            if (!batch.isEmpty()) {
+                submit();
+            }
+            while (!inFlight.isEmpty()) {
+                applyOldest();
+            }
+        }
+
+        /**
+         * Cancel batches that are not applied, e.g. after a failure.
+         */
+        @Override
+        public void close() {
+            inFlight.forEach(future -> future.cancel(false));
+            inFlight.clear();
+        }
+
+        private void submit() {
+            List<CDCRecord> records = batch;
+            batch = new ArrayList<>(batchSize);
+            inFlight.addLast(parseExecutor.submit(() -> parser.parse(records)));
+            // apply ready batches in order, block only if too many batches are in flight
+            while (!inFlight.isEmpty() && (inFlight.peekFirst().isDone() || inFlight.size() > maxBatchesInFlight)) {
+                applyOldest();
+            }
+        }
+
+        private void applyOldest() {
+            List<ParsedCDCRecord> parsed;
+            try {
+                parsed = inFlight.pollFirst().get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException("CDC records are not parsed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for parsed CDC records", e);
+            }
+            parsed.forEach(applier);
+        }
+    }
+}
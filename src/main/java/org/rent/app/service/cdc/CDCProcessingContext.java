@@ -1,10 +1,11 @@
 package org.rent.app.service.cdc;
 
 import lombok.Data;
+import org.rent.app.domain.cdc.Lsn;
 
-import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * CDCProcessingContext
@@ -17,54 +18,72 @@ import java.util.regex.Pattern;
  */
 @Data
 public class CDCProcessingContext {
-    private String lastLsn; //the last scanned lsn. It is used to clean WAL
+    private static final long NO_XID = 0L; // InvalidTransactionId, is never assigned to a transaction
+
+    private Lsn firstLsn; // the first scanned lsn. It is used for tracing.
+    private Lsn lastLsn; //the last scanned lsn. It is used to clean WAL
     private long scannedCDCRecords = 0;// number of scanned records. It is used for control.
     private int txCount = 0; // number of scanned transactions. It is used for tuning.
-    private String xid = null; // current xid
-
-    private final Matcher tableOperationMatcher;
-    private final Matcher columnTypeValueMatcher;
+    private long xid = NO_XID; // current xid
+    private Set<String> transactionTables = Set.of(); // tables changed by the current transaction
 
-    public CDCProcessingContext(Pattern tableOperationPattern, Pattern columnTypeValuePattern) {
-        this.tableOperationMatcher = tableOperationPattern.matcher("");
-        this.columnTypeValueMatcher = columnTypeValuePattern.matcher("");
-    }
-
-    public void openTransaction(String xid) {
+    public void openTransaction(long xid) {
         requireNoOpenTransaction();
-        this.xid = Objects.requireNonNull(xid);
+        if (xid == NO_XID) {
+            throw new IllegalArgumentException("Invalid xid " + xid);
+        }
+        this.xid = xid;
+        transactionTables = new HashSet<>(4);
         scannedCDCRecords += 1;
     }
 
-    public void addOperation(String xid, TransactionOperation operation) {
+    /**
+     * @param operations - operations of a CDC record. TRUNCATE record contains several operations
+     */
+    public void addOperations(long xid, List<TransactionOperation> operations) {
         requireOpenTransaction();
         checkXid(xid);
+        operations.forEach(operation -> transactionTables.add(operation.getTableName()));
         scannedCDCRecords += 1;
     }
 
-    public void closeTransaction(String xid, String lsn) {
+    public void closeTransaction(long xid, Lsn lsn) {
         requireOpenTransaction();
         checkXid(xid);
-        this.xid = null;
+        this.xid = NO_XID;
         lastLsn = lsn;
         txCount += 1;
         scannedCDCRecords += 1;
     }
 
+    /**
+     * A message outside a transaction (a heartbeat) moves the last lsn, so WAL is cleaned up to it.
+     *
+     * @return true if the message is outside a transaction
+     */
+    public boolean addMessage(Lsn lsn) {
+        scannedCDCRecords += 1;
+        if (xid != NO_XID) {
+            return false;
+        }
+        lastLsn = lsn;
+        return true;
+    }
+
     public void requireNoOpenTransaction() {
-        if (Objects.nonNull(xid)) {
+        if (xid != NO_XID) {
             throw new IllegalStateException("The current transaction is not committed. xid= " + xid);
         }
     }
 
     private void requireOpenTransaction() {
-        if (Objects.isNull(xid)) {
+        if (xid == NO_XID) {
             throw new IllegalStateException("The current transaction is not opened.");
         }
     }
 
-    private void checkXid(String xid) {
-        if (!Objects.equals(xid, this.xid)) {
+    private void checkXid(long xid) {
+        if (xid != this.xid) {
             throw new IllegalStateException("context xid (%s) <> record xid (%s)".formatted(this.xid, xid));
         }
     }
@@ -0,0 +1,91 @@
+package org.rent.app.service.cdc;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.rent.app.domain.cdc.Lsn;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CDCStartupListener
+ * <p>
+ * Processes WAL accumulated while the application was down as soon as the application is ready,
+ * without waiting for the first write.
+ * </p>
+ * <p>
+ * Measures the time from the JVM start to the first change acknowledged by the index
+ * and publishes it as the {@code cdc.startup.first-applied} gauge (ms).
+ * With {@code cdc.startup.exit-after-first-applied=true} the application exits after the first change,
+ * that is a startup benchmark run and a training run for the AppCDS archive (see README).
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class CDCStartupListener {
+    public static final String METRIC_NAME = "cdc.startup.first-applied";
+
+    @Value("${cdc.startup.exit-after-first-applied:false}")
+    private boolean exitAfterFirstApplied;
+
+    @Autowired
+    private TestDecodingCDCService cdcService;
+    @Autowired
+    private ElasticsearchBulkSink sink;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private ApplicationContext context;
+
+    private final AtomicBoolean firstApplied = new AtomicBoolean(false);
+    private final AtomicLong firstAppliedMs = new AtomicLong(-1);
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady() {
+        Gauge.builder(METRIC_NAME, firstAppliedMs, AtomicLong::get)
+                .description("Time from JVM start to the first change acknowledged by the index, ms")
+                .register(meterRegistry);
+        sink.addConfirmationListener(this::onConfirmed);
+        log.info("Application is ready in {} ms. Process WAL accumulated during startup.", sinceJvmStart());
+        cdcService.processNextCDCChunkInBackground().addCallback(
+                count -> log.info("Processed {} transactions accumulated during startup", count),
+                this::onFailed);
+    }
+
+    /*
+     * the pipeline is retried by the next write or heartbeat, but a training run would wait forever
+     */
+    private void onFailed(Throwable e) {
+        log.error("Could not process WAL accumulated during startup", e);
+        if (exitAfterFirstApplied) {
+            new Thread(() -> System.exit(SpringApplication.exit(context, () -> 1)), "startupExit").start();
+        }
+    }
+
+    private void onConfirmed(Lsn lsn) {
+        if (!firstApplied.compareAndSet(false, true)) {
+            return;
+        }
+        firstAppliedMs.set(sinceJvmStart());
+        log.info("The first change (lsn={}) is applied {} ms after JVM start", lsn, firstAppliedMs.get());
+        if (exitAfterFirstApplied) {
+            // the listener is called on an I/O thread of the client, which is stopped by the context
+            new Thread(() -> System.exit(SpringApplication.exit(context)), "startupExit").start();
+        }
+    }
+
+    private static long sinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+}
@@ -0,0 +1,173 @@
+package org.rent.app.service.cdc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * CatchUpModeService
+ * <p>
+ * Switches the pipeline into catch-up mode when the slot retains more than {@code cdc.catch-up.enter-wal-bytes} of WAL
+ * and back when it retains less than {@code cdc.catch-up.exit-wal-bytes}.
+ * In catch-up mode the document indices are not refreshed ({@code refresh_interval=-1}),
+ * have {@code cdc.catch-up.replicas} replicas, and the sink sends the largest bulk requests over all lanes.
+ * On exit the original settings are put back and the indices are refreshed.
+ * </p>
+ * <p>
+ * If the application stopped in catch-up mode, the original settings are lost.
+ * An index with {@code refresh_interval=-1} found by the first check is returned to the index defaults on exit.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class CatchUpModeService {
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    private static final String NO_REFRESH = "-1";
+
+    @Value("${cdc.catch-up.enter-wal-bytes:1073741824}")
+    private long enterWalBytes;
+    @Value("${cdc.catch-up.exit-wal-bytes:67108864}")
+    private long exitWalBytes;
+    @Value("${cdc.catch-up.replicas:0}")
+    private int catchUpReplicas;
+
+    @Autowired
+    private RestHighLevelClient client;
+    @Autowired
+    private ElasticsearchOperations operations;
+    @Autowired
+    private ElasticsearchBulkSink sink;
+    @Autowired
+    private TransactionOperationProcessor processor;
+
+    private boolean checked = false;
+    private volatile boolean active = false; // read by writers of the priority lane
+    /*
+     * settings of concrete indices before catch-up mode. Accessed by the CDC thread only.
+     */
+    private final Map<String, Settings> originalSettings = new HashMap<>();
+
+    /**
+     * Enter or exit catch-up mode.
+     *
+     * @param retainedWalBytes - bytes of WAL retained by the slot
+     * @return true if the pipeline is in catch-up mode
+     */
+    public boolean update(long retainedWalBytes) {
+        if (!checked) {
+            checked = true;
+            findInterruptedCatchUp();
+        }
+        if (!active && retainedWalBytes > enterWalBytes) {
+            log.info("Enter catch-up mode, retained WAL {} bytes", retainedWalBytes);
+            enter();
+        } else if (active && retainedWalBytes < exitWalBytes) {
+            log.info("Exit catch-up mode, retained WAL {} bytes", retainedWalBytes);
+            exit();
+        }
+        return active;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Make the changes visible in search results while the indices are not refreshed automatically.
+     */
+    public void refresh() {
+        processor.getDocumentClasses().forEach(clazz -> operations.indexOps(clazz).refresh());
+    }
+
+    private void enter() {
+        String[] indices = getIndices();
+        try {
+            var res = client.indices().getSettings(new GetSettingsRequest().indices(indices), RequestOptions.DEFAULT);
+            for (var entry : res.getIndexToSettings()) {
+                originalSettings.putIfAbsent(entry.key, Settings.builder()
+                        .put(REFRESH_INTERVAL, entry.value.get(REFRESH_INTERVAL))
+                        .put(NUMBER_OF_REPLICAS, entry.value.get(NUMBER_OF_REPLICAS))
+                        .build());
+            }
+            client.indices().putSettings(new UpdateSettingsRequest(indices).settings(Settings.builder()
+                    .put(REFRESH_INTERVAL, NO_REFRESH)
+                    .put(NUMBER_OF_REPLICAS, catchUpReplicas)), RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't enter catch-up mode", e);
+        }
+        sink.setCatchUp(true);
+        active = true;
+    }
+
+    private void exit() {
+        // bulk requests above the normal limit must complete before the settings are restored
+        sink.setCatchUp(false);
+        originalSettings.forEach((index, settings) -> {
+            try {
+                client.indices().putSettings(new UpdateSettingsRequest(index).settings(restore(settings)), RequestOptions.DEFAULT);
+            } catch (ElasticsearchStatusException e) {
+                // the index has been replaced by TRUNCATE
+                if (e.status() != RestStatus.NOT_FOUND) throw e;
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't exit catch-up mode", e);
+            }
+        });
+        originalSettings.clear();
+        active = false;
+        refresh();
+    }
+
+    /*
+     * null settings are reset to the index defaults
+     */
+    private static Settings.Builder restore(Settings settings) {
+        var builder = Settings.builder();
+        for (String key : new String[]{REFRESH_INTERVAL, NUMBER_OF_REPLICAS}) {
+            if (Objects.isNull(settings.get(key))) builder.putNull(key);
+            else builder.put(key, settings.get(key));
+        }
+        return builder;
+    }
+
+    private void findInterruptedCatchUp() {
+        try {
+            var res = client.indices().getSettings(new GetSettingsRequest().indices(getIndices()).names(REFRESH_INTERVAL),
+                    RequestOptions.DEFAULT);
+            for (var entry : res.getIndexToSettings()) {
+                if (NO_REFRESH.equals(entry.value.get(REFRESH_INTERVAL))) {
+                    log.warn("Index {} is left in catch-up mode", entry.key);
+                    originalSettings.put(entry.key, Settings.EMPTY);
+                    active = true;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read index settings", e);
+        }
+        if (active) {
+            sink.setCatchUp(true);
+        }
+    }
+
+    private String[] getIndices() {
+        return processor.getDocumentClasses().stream()
+                .map(clazz -> operations.getIndexCoordinatesFor(clazz).getIndexName())
+                .toArray(String[]::new);
+    }
+}
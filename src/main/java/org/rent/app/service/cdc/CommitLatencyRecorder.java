@@ -0,0 +1,140 @@
+package org.rent.app.service.cdc;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.rent.app.domain.cdc.Lsn;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommitLatencyRecorder
+ * <p>
+ * Measures how long after COMMIT in the database a change is acknowledged by the index.
+ * The commit timestamp comes from the COMMIT record ({@code include-timestamp} option of {@code test_decoding}),
+ * the end is the moment {@link ElasticsearchBulkSink} confirms the commit lsn.
+ * Both clocks must be synchronized, the database clock is used for the start.
+ * An acknowledged change is returned by a get, but a search sees it only after the next refresh,
+ * which background processing does not force: add up to the refresh interval for search visibility.
+ * </p>
+ * <p>
+ * Latencies are recorded per table into the {@code cdc.commit.acknowledged} timer with percentile histograms
+ * and p50/p99/p999, see {@code /actuator/metrics/cdc.commit.acknowledged?tag=table:product}.
+ * Transactions slower than {@code cdc.latency.slow-threshold-ms} are summarized in at most one warning
+ * per {@code cdc.latency.slow-log-interval-ms}, with their count and the slowest one:
+ * in catch-up mode every transaction of the backlog is slow.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class CommitLatencyRecorder {
+    public static final String METRIC_NAME = "cdc.commit.acknowledged";
+
+    @Value("${cdc.latency.slow-threshold-ms:1000}")
+    private long slowThresholdMs;
+    @Value("${cdc.latency.slow-log-interval-ms:10000}")
+    private long slowLogIntervalMs;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private ElasticsearchBulkSink sink;
+
+    private record PendingCommit(long xid, Lsn lsn, Instant commitTime, Set<String> tables) {
+    }
+
+    /*
+     * committed transactions that are not confirmed by the sink yet, in lsn order. Guarded by this.
+     */
+    private final Deque<PendingCommit> pending = new ArrayDeque<>();
+    private final Map<String, Timer> timerByTable = new ConcurrentHashMap<>();
+    /*
+     * slow transactions since the last warning. Guarded by this.
+     */
+    private long slowCount = 0;
+    private PendingCommit slowest;
+    private Duration slowestLatency = Duration.ZERO;
+    private long lastWarningNanos = System.nanoTime();
+
+    @PostConstruct
+    private void init() {
+        sink.addConfirmationListener(this::onConfirmed);
+    }
+
+    /**
+     * A transaction is committed and all its operations are passed to the sink.
+     *
+     * @param commitTime - commit timestamp from the COMMIT record, null if it is unknown
+     * @param tables     - tables changed by the transaction
+     */
+    public synchronized void onCommit(long xid, Lsn lsn, Instant commitTime, Set<String> tables) {
+        if (Objects.isNull(commitTime) || tables.isEmpty()) {
+            return;
+        }
+        if (!pending.isEmpty() && !lsn.isAfter(pending.peekLast().lsn())) {
+            // WAL is re-scanned after a failure, the previous commits will be registered again
+            pending.clear();
+        }
+        pending.addLast(new PendingCommit(xid, lsn, commitTime, tables));
+    }
+
+    private synchronized void onConfirmed(Lsn confirmedLsn) {
+        Instant now = Instant.now();
+        while (!pending.isEmpty() && !pending.peekFirst().lsn().isAfter(confirmedLsn)) {
+            var commit = pending.pollFirst();
+            Duration latency = record(commit, now);
+            if (latency.toMillis() > slowThresholdMs) {
+                slowCount += 1;
+                if (latency.compareTo(slowestLatency) > 0) {
+                    slowest = commit;
+                    slowestLatency = latency;
+                }
+            }
+        }
+        long nowNanos = System.nanoTime();
+        if (slowCount > 0 && nowNanos - lastWarningNanos >= TimeUnit.MILLISECONDS.toNanos(slowLogIntervalMs)) {
+            log.warn("{} slow transactions acknowledged up to lsn {}, the slowest: xid={}, commit lsn={}, tables={}, acknowledged after {} ms",
+                    slowCount, confirmedLsn, slowest.xid(), slowest.lsn(), slowest.tables(), slowestLatency.toMillis());
+            slowCount = 0;
+            slowest = null;
+            slowestLatency = Duration.ZERO;
+            lastWarningNanos = nowNanos;
+        }
+    }
+
+    private Duration record(PendingCommit commit, Instant now) {
+        Duration latency = Duration.between(commit.commitTime(), now);
+        if (latency.isNegative()) {
+            latency = Duration.ZERO; // clock skew between the database and the application
+        }
+        for (String table : commit.tables()) {
+            timerByTable.computeIfAbsent(table, this::createTimer).record(latency);
+        }
+        return latency;
+    }
+
+    private Timer createTimer(String table) {
+        return Timer.builder(METRIC_NAME)
+                .description("Time from commit in the database to acknowledgement by the index")
+                .tag("table", table)
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(10))
+                .register(meterRegistry);
+    }
+}
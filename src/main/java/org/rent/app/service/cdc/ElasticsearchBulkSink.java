@@ -0,0 +1,508 @@
+package org.rent.app.service.cdc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.DeprecationHandler;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.XContentType;
+import org.rent.app.domain.cdc.Lsn;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * ElasticsearchBulkSink
+ * <p>
+ * Collects index/delete actions of the CDC thread into bulk requests
+ * and sends them with the asynchronous client.
+ * Up to {@code cdc.sink.max-in-flight} bulk requests are in flight at the same time,
+ * the CDC thread blocks only when this limit is reached.
+ * </p>
+ * <p>
+ * Bulk request bodies are written in NDJSON format into pooled {@link BulkBuffer}s,
+ * either by a compiled {@link NdjsonDocumentWriter} straight from column values
+ * or, for entities without a writer, from an ELK document converted by Spring Data.
+ * </p>
+ * <p>
+ * Every action carries the lsn of its CDC record as an external version,
+ * so bulk requests may be executed by Elasticsearch in any order:
+ * an older version of a document never overwrites a newer one.
+ * </p>
+ * <p>
+ * Completions are confirmed in the order bulk requests were sent.
+ * {@link #getConfirmedLsn()} is the lsn of the last committed transaction whose actions are all acknowledged,
+ * WAL may be cleaned up to this lsn.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class ElasticsearchBulkSink {
+    @Value("${cdc.sink.max-in-flight:4}")
+    private int maxInFlight;
+    @Value("${cdc.sink.bulk-actions:1000}")
+    private int bulkActions;
+    @Value("${cdc.sink.bulk-bytes:5242880}")
+    private int bulkBytes;
+    @Value("${cdc.catch-up.max-in-flight:16}")
+    private int catchUpMaxInFlight;
+    @Value("${cdc.catch-up.bulk-actions:10000}")
+    private int catchUpBulkActions;
+    @Value("${cdc.catch-up.bulk-bytes:20971520}")
+    private int catchUpBulkBytes;
+    @Value("${cdc.sink.ack-timeout-sec:30}")
+    private long ackTimeoutSec;
+    /*
+     * indices whose changes must be visible in search results when a writer waits for them
+     */
+    @Value("${cdc.sink.refresh-indices:product}")
+    private Set<String> refreshIndices;
+
+    @Autowired
+    private RestHighLevelClient client;
+    @Autowired
+    private ElasticsearchOperations operations;
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+    private static final RequestOptions BULK_OPTIONS = RequestOptions.DEFAULT.toBuilder()
+            .addHeader("Content-Type", "application/vnd.elasticsearch+x-ndjson;compatible-with=7")
+            .build();
+
+    private Semaphore inFlight;
+    /*
+     * the current limits. They are raised in catch-up mode. Accessed by the CDC thread only.
+     */
+    private int lanes;
+    private int sendActions;
+    private int sendBytes;
+    /*
+     * buffers of acknowledged bulk requests
+     */
+    private final ConcurrentLinkedQueue<BulkBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    /*
+     * the bulk request that is being filled by the CDC thread
+     */
+    private BulkBuffer current;
+    /*
+     * refresh indices touched by the current bulk request and by the bulk requests sent since these indices were refreshed.
+     * The latter survive chunks and scans: the change of a waiting writer may be in any earlier chunk
+     * or may have been applied by a background call.
+     */
+    private final Set<String> currentRefreshIndices = new HashSet<>();
+    private final Set<String> unrefreshedIndices = new HashSet<>();
+    /*
+     * the lsn of the last committed transaction seen by the sink
+     */
+    private Lsn committedLsn = Lsn.ZERO;
+    /*
+     * sent bulk requests in the sending order. Guarded by this.
+     */
+    private final Deque<PendingBulk> pending = new ArrayDeque<>();
+    private Lsn confirmedLsn = Lsn.ZERO; // guarded by this
+    private Exception failure; // guarded by this
+    /*
+     * are notified with the new confirmed lsn on the thread that completes a bulk request
+     */
+    private final List<Consumer<Lsn>> confirmationListeners = new CopyOnWriteArrayList<>();
+
+    private static final class PendingBulk {
+        private final Lsn lsn; // all transactions committed before or at this lsn are in this or previous bulks
+        private boolean done;
+        private Exception failure;
+
+        private PendingBulk(Lsn lsn) {
+            this.lsn = lsn;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        inFlight = new Semaphore(maxInFlight);
+        lanes = maxInFlight;
+        sendActions = bulkActions;
+        sendBytes = bulkBytes;
+        current = takeBuffer();
+    }
+
+    /**
+     * Index a row without creating entities.
+     */
+    public void index(NdjsonDocumentWriter writer, Map<String, String> columnValues, long version) {
+        beforeAction(writer.getIndexName());
+        writer.writeIndex(current, columnValues, version);
+    }
+
+    /**
+     * Delete a row without creating entities.
+     */
+    public void delete(NdjsonDocumentWriter writer, Map<String, String> columnValues, long version) {
+        beforeAction(writer.getIndexName());
+        writer.writeDelete(current, columnValues, version);
+    }
+
+    public void index(Object id, Object document, long version) {
+        var index = operations.getIndexCoordinatesFor(document.getClass()).getIndexName();
+        String source = operations.getElasticsearchConverter().mapObject(document).toJson();
+        beforeAction(index);
+        writeAction("index", index, operations.stringIdRepresentation(id), version);
+        current.write(source.getBytes(StandardCharsets.UTF_8)).write((byte) '\n');
+        current.endAction();
+    }
+
+    public void delete(Class<?> documentClass, Object id, long version) {
+        var index = operations.getIndexCoordinatesFor(documentClass).getIndexName();
+        beforeAction(index);
+        writeAction("delete", index, operations.stringIdRepresentation(id), version);
+        current.endAction();
+    }
+
+    /**
+     * Update a document without external version.
+     *
+     * @param body - writes the body of the update action, e.g. a script with an upsert document
+     */
+    public void update(String index, String id, Consumer<BulkBuffer> body) {
+        beforeAction(index);
+        current.writeAscii("{\"update\":{\"_index\":").writeJsonString(index)
+                .writeAscii(",\"_id\":").writeJsonString(id)
+                .writeAscii(",\"retry_on_conflict\":3}}\n");
+        body.accept(current);
+        current.write((byte) '\n');
+        current.endAction();
+    }
+
+    /**
+     * Mark the end of a transaction.
+     *
+     * @param lsn - lsn of the COMMIT record
+     */
+    public void commit(Lsn lsn) {
+        committedLsn = lsn;
+    }
+
+    /**
+     * Send the current bulk request even it is not full.
+     */
+    public void flush() {
+        send(false);
+    }
+
+    /**
+     * Flush and wait until all actions of transactions committed before or at lsn are acknowledged.
+     *
+     * @param lsn            - lsn of the COMMIT record
+     * @param waitForRefresh - somebody waits to see the changes in search results.
+     *                       If only the last bulk request touches indices from {@code cdc.sink.refresh-indices}
+     *                       since they were refreshed, it is sent with {@code refresh=wait_for}.
+     *                       Otherwise the touched indices are refreshed explicitly once all requests are acknowledged:
+     *                       {@code wait_for} covers only the shards of its own request.
+     *                       Without waitForRefresh the touched indices are remembered for the next waiting call.
+     *                       Other bulk requests never refresh, so no small segments are created by forced refreshes.
+     * @throws IllegalStateException if a bulk request failed or timeout is exceeded
+     */
+    public void awaitConfirmed(Lsn lsn, boolean waitForRefresh) {
+        boolean refreshAfter = waitForRefresh && !unrefreshedIndices.isEmpty();
+        boolean refreshLast = waitForRefresh && !refreshAfter && !currentRefreshIndices.isEmpty();
+        send(refreshLast);
+        await(() -> !confirmedLsn.isBefore(lsn), "lsn=" + lsn);
+        if (refreshAfter) {
+            refreshTouched();
+        } else if (refreshLast) {
+            unrefreshedIndices.clear();
+        }
+    }
+
+    /**
+     * Refresh the indices from {@code cdc.sink.refresh-indices} changed by acknowledged bulk requests since their last refresh,
+     * e.g. by earlier chunks or by background calls. Call it after the bulk requests are acknowledged.
+     *
+     * @throws IllegalStateException if the refresh fails
+     */
+    public void refreshTouched() {
+        if (unrefreshedIndices.isEmpty()) {
+            return;
+        }
+        refresh(unrefreshedIndices);
+        unrefreshedIndices.clear();
+    }
+
+    /**
+     * All indices have been refreshed by somebody else, e.g. in catch-up mode.
+     */
+    public void markRefreshed() {
+        unrefreshedIndices.clear();
+    }
+
+    /**
+     * Send the current bulk request and wait until all sent bulk requests are acknowledged.
+     *
+     * @throws IllegalStateException if a bulk request failed or timeout is exceeded
+     */
+    public void drain() {
+        send(false);
+        await(pending::isEmpty, "drain");
+    }
+
+    private synchronized void await(BooleanSupplier done, String what) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(ackTimeoutSec);
+        while (!done.getAsBoolean() && Objects.isNull(failure)) {
+            long waitMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (waitMs <= 0) {
+                throw new IllegalStateException("Bulk requests are not acknowledged in %d sec. %s, confirmed lsn=%s"
+                        .formatted(ackTimeoutSec, what, confirmedLsn));
+            }
+            try {
+                wait(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for bulk requests", e);
+            }
+        }
+        if (Objects.nonNull(failure)) {
+            throw new IllegalStateException("Bulk request failed. Confirmed lsn=%s".formatted(confirmedLsn), failure);
+        }
+    }
+
+    /**
+     * Switch between the normal limits and the catch-up limits:
+     * {@code cdc.catch-up.max-in-flight} bulk requests of up to {@code cdc.catch-up.bulk-actions} actions.
+     * Switching back waits until the number of in-flight requests drops to {@code cdc.sink.max-in-flight}.
+     */
+    public void setCatchUp(boolean catchUp) {
+        int target = catchUp ? Math.max(maxInFlight, catchUpMaxInFlight) : maxInFlight;
+        if (target > lanes) {
+            inFlight.release(target - lanes);
+        } else if (target < lanes) {
+            try {
+                if (!inFlight.tryAcquire(lanes - target, ackTimeoutSec, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Bulk requests are not completed in %d sec".formatted(ackTimeoutSec));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for bulk requests", e);
+            }
+        }
+        lanes = target;
+        sendActions = catchUp ? Math.max(bulkActions, catchUpBulkActions) : bulkActions;
+        sendBytes = catchUp ? Math.max(bulkBytes, catchUpBulkBytes) : bulkBytes;
+    }
+
+    /**
+     * The listener is called when the confirmed lsn advances.
+     * It is called on an I/O thread of the client and must not block.
+     */
+    public void addConfirmationListener(Consumer<Lsn> listener) {
+        confirmationListeners.add(listener);
+    }
+
+    public synchronized Lsn getConfirmedLsn() {
+        return confirmedLsn;
+    }
+
+    /**
+     * Prepare the sink for a new WAL scan.
+     * Unsent actions of a failed scan are dropped, as their CDC records remain in the slot.
+     * Bulk requests of a failed scan are awaited, the indices they touched still have to be refreshed.
+     */
+    public void reset() {
+        current.reset();
+        currentRefreshIndices.clear();
+        committedLsn = Lsn.ZERO;
+        try {
+            if (!inFlight.tryAcquire(lanes, ackTimeoutSec, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Bulk requests of a previous scan are not completed in %d sec".formatted(ackTimeoutSec));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for bulk requests", e);
+        }
+        inFlight.release(lanes);
+        synchronized (this) {
+            pending.clear();
+            confirmedLsn = Lsn.ZERO;
+            failure = null;
+        }
+    }
+
+    private void writeAction(String action, String index, String id, long version) {
+        current.writeAscii("{\"").writeAscii(action).writeAscii("\":{\"_index\":").writeJsonString(index)
+                .writeAscii(",\"_id\":").writeJsonString(id)
+                .writeAscii(",\"version\":").writeLong(version)
+                .writeAscii(",\"version_type\":\"external\"}}\n");
+    }
+
+    /*
+     * A full bulk request is sent before the next action is added, not after the last one.
+     * So the last bulk request of a chunk is never empty and can carry refresh=wait_for.
+     */
+    private void beforeAction(String index) {
+        if (current.actions() >= sendActions || current.size() >= sendBytes) {
+            send(false);
+        }
+        if (refreshIndices.contains(index)) {
+            currentRefreshIndices.add(index);
+        }
+    }
+
+    private void refresh(Set<String> indices) {
+        log.debug("Refresh {} touched by earlier bulk requests", indices);
+        try {
+            client.indices().refresh(new RefreshRequest(indices.toArray(String[]::new)), RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not refresh " + indices, e);
+        }
+    }
+
+    private BulkBuffer takeBuffer() {
+        BulkBuffer buffer = bufferPool.poll();
+        return Objects.nonNull(buffer) ? buffer : new BulkBuffer(Math.min(bulkBytes, 1 << 20));
+    }
+
+    private void releaseBuffer(BulkBuffer buffer) {
+        buffer.reset();
+        bufferPool.offer(buffer);
+    }
+
+    private void send(boolean waitForRefresh) {
+        unrefreshedIndices.addAll(currentRefreshIndices);
+        currentRefreshIndices.clear();
+        PendingBulk bulk = new PendingBulk(committedLsn);
+        if (current.actions() == 0) {
+            // nothing to send, but the watermark must advance in order with the sent bulk requests
+            synchronized (this) {
+                pending.addLast(bulk);
+                complete(bulk, null);
+            }
+            return;
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an in-flight slot", e);
+        }
+        BulkBuffer buffer = current;
+        current = takeBuffer();
+        synchronized (this) {
+            pending.addLast(bulk);
+        }
+        log.debug("Send bulk request: actions={}, bytes={}, lsn={}, wait for refresh={}",
+                buffer.actions(), buffer.size(), bulk.lsn, waitForRefresh);
+        // the event is committed on the I/O thread that completes the request
+        var event = new CDCEvents.SinkRequest();
+        event.begin();
+        event.lsn = bulk.lsn.value();
+        event.actions = buffer.actions();
+        event.bytes = buffer.size();
+        event.waitForRefresh = waitForRefresh;
+        Request request = new Request("POST", "/_bulk");
+        request.setOptions(BULK_OPTIONS);
+        if (waitForRefresh) {
+            request.addParameter("refresh", "wait_for");
+        }
+        request.setEntity(new NByteArrayEntity(buffer.array(), 0, buffer.size(), NDJSON));
+        client.getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                Exception bulkFailure;
+                try {
+                    bulkFailure = checkItems(parse(response));
+                } catch (IOException | RuntimeException e) {
+                    bulkFailure = e;
+                }
+                event.failed = Objects.nonNull(bulkFailure);
+                event.commit();
+                releaseBuffer(buffer);
+                complete(bulk, bulkFailure);
+                inFlight.release();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                event.failed = true;
+                event.commit();
+                releaseBuffer(buffer);
+                complete(bulk, e);
+                inFlight.release();
+            }
+        });
+    }
+
+    private static BulkResponse parse(Response response) throws IOException {
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(
+                NamedXContentRegistry.EMPTY, DeprecationHandler.IGNORE_DEPRECATIONS, response.getEntity().getContent())) {
+            return BulkResponse.fromXContent(parser);
+        }
+    }
+
+    private synchronized void complete(PendingBulk bulk, Exception bulkFailure) {
+        bulk.done = true;
+        bulk.failure = bulkFailure;
+        Lsn before = confirmedLsn;
+        while (!pending.isEmpty() && pending.peekFirst().done) {
+            PendingBulk head = pending.pollFirst();
+            if (Objects.nonNull(head.failure) && Objects.isNull(failure)) {
+                failure = head.failure;
+            }
+            if (Objects.isNull(failure)) {
+                confirmedLsn = Lsn.max(confirmedLsn, head.lsn);
+            }
+        }
+        if (confirmedLsn.isAfter(before)) {
+            confirmationListeners.forEach(listener -> listener.accept(confirmedLsn));
+        }
+        notifyAll();
+    }
+
+    /*
+     * A version conflict means the index already has the same or a newer version of the document.
+     * Any other item failure fails the whole bulk.
+     */
+    private static Exception checkItems(BulkResponse response) {
+        if (!response.hasFailures()) {
+            return null;
+        }
+        IllegalStateException res = null;
+        for (BulkItemResponse item : response.getItems()) {
+            if (!item.isFailed()) continue;
+            if (item.status() == RestStatus.CONFLICT) {
+                log.debug("Skip stale action {} for id {}", item.getOpType(), item.getId());
+                continue;
+            }
+            if (Objects.isNull(res)) {
+                res = new IllegalStateException("Bulk item failed: " + item.getFailureMessage());
+            }
+        }
+        return res;
+    }
+}
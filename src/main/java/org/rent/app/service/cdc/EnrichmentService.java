@@ -0,0 +1,277 @@
+package org.rent.app.service.cdc;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.UpdateByQueryRequest;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.rent.app.service.Enrichment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * EnrichmentService
+ * <p>
+ * Keeps the values of reference tables declared by {@link Enrichment}s in bounded LRU caches,
+ * one per reference column. A cache is filled by one scan at startup and then maintained from the change stream:
+ * operations on reference tables pass through the pipeline in lsn order, so a document is enriched
+ * with the reference values as of its own lsn. A lookup goes to the database only if the entry was evicted
+ * from a cache that does not hold the whole table ({@code cdc.enrichment.max-entries}).
+ * </p>
+ * <p>
+ * When a reference value changes, the documents that refer to it are updated in the index with one update by query
+ * per cache after the chunk is acknowledged, so the update can not be overtaken by a bulk request of the chunk.
+ * </p>
+ * <p>
+ * Update by query writes with internal versioning, so it increments the external version of a document (the lsn)
+ * by one. The next change of the row is still after it: a WAL record takes at least 24 bytes.
+ * A document written by the {@link PriorityLane} has a version 24 bytes below the operation of its write for the same reason.
+ * An operation of the row read again, e.g. when a chunk is processed again after a restart, is not after the version
+ * and is rejected with 409. The sink skips it as stale, which is right: the document already has the operation
+ * and the reference values flushed after it, which the operation would overwrite with the values as of its lsn.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class EnrichmentService {
+    private static final String MISSING = "missing"; // compared by identity, the key is not in the table
+    private static final String UPDATE_SCRIPT =
+            "ctx._source[params.target] = params.values.get(String.valueOf(ctx._source[params.key]))";
+
+    @Value("${cdc.enrichment.max-entries:100000}")
+    private int maxEntries;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private RestHighLevelClient client;
+    @Autowired
+    private ElasticsearchOperations operations;
+    @Autowired
+    private SearchCacheInvalidator searchCacheInvalidator;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private record Dependent(Class<?> documentClass, String keyField, String targetField) {
+    }
+
+    /*
+     * values of a reference column hashed by the key. Accessed by the CDC thread only after startup.
+     */
+    private class ReferenceCache {
+        private final String table;
+        private final String keyColumn;
+        private final String valueColumn;
+        private final List<Dependent> dependents = new ArrayList<>();
+        private final Map<String, String> values = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > maxEntries) {
+                    complete = false;
+                    return true;
+                }
+                return false;
+            }
+        };
+        private boolean complete; // all rows of the table are in the cache
+        /*
+         * values changed by the current chunk, null if the row is deleted
+         */
+        private final Map<String, String> changed = new HashMap<>();
+        private boolean truncated = false;
+
+        ReferenceCache(String table, String keyColumn, String valueColumn) {
+            this.table = table;
+            this.keyColumn = keyColumn;
+            this.valueColumn = valueColumn;
+        }
+
+        void load() {
+            var rows = jdbcTemplate.queryForList("SELECT cast(%s as text) AS k, cast(%s as text) AS v FROM %s LIMIT ?"
+                    .formatted(keyColumn, valueColumn, table), maxEntries + 1);
+            rows.stream().limit(maxEntries).forEach(row -> values.put((String) row.get("k"), Objects.toString(row.get("v"), null)));
+            complete = rows.size() <= maxEntries;
+            log.info("Loaded {} rows of {}.{}, complete={}", values.size(), table, valueColumn, complete);
+        }
+
+        String get(String key) {
+            String value = values.get(key);
+            if (Objects.isNull(value)) {
+                if (complete) return null;
+                // the entry is evicted, the database is asked only once for the key
+                loads.increment();
+                var res = jdbcTemplate.queryForList("SELECT cast(%s as text) FROM %s WHERE %s = ?".formatted(valueColumn, table, keyColumn),
+                        new Object[]{key}, new int[]{Types.OTHER}, String.class);
+                value = res.isEmpty() ? MISSING : res.get(0);
+                values.put(key, value);
+            }
+            return value == MISSING ? null : value;
+        }
+
+        void apply(TransactionOperation op) {
+            switch (op.getOperationType()) {
+                case INSERT, UPDATE -> {
+                    var oldRow = op.getOldColumnValues();
+                    String key = op.getColumnValues().get(keyColumn);
+                    if (Objects.nonNull(oldRow) && oldRow.containsKey(keyColumn) && !Objects.equals(oldRow.get(keyColumn), key)) {
+                        // the key is changed
+                        put(oldRow.get(keyColumn), null);
+                    }
+                    put(key, op.getColumnValues().get(valueColumn));
+                }
+                case DELETE -> put(op.getColumnValues().get(keyColumn), null);
+                case TRUNCATE -> {
+                    values.clear();
+                    complete = true;
+                    changed.clear();
+                    truncated = true;
+                }
+            }
+        }
+
+        private void put(String key, String value) {
+            if (Objects.isNull(key)) return;
+            String cached = values.get(key);
+            if (Objects.nonNull(cached) && Objects.equals(cached == MISSING ? null : cached, value)) {
+                return;
+            }
+            values.put(key, Objects.isNull(value) ? MISSING : value);
+            changed.put(key, value);
+        }
+
+        /*
+         * the chunk is processed again, its changes must be detected again
+         */
+        void reset() {
+            if (truncated) {
+                values.clear();
+                complete = false;
+            } else if (!changed.isEmpty()) {
+                changed.keySet().forEach(values::remove);
+                complete = false;
+            }
+            changed.clear();
+            truncated = false;
+        }
+
+        void flush(boolean waitForRefresh) {
+            if (changed.isEmpty() && !truncated) {
+                return;
+            }
+            for (Dependent dependent : dependents) {
+                String index = operations.getIndexCoordinatesFor(dependent.documentClass()).getIndexName();
+                // documents of the chunk written before the change may be not refreshed yet
+                operations.indexOps(dependent.documentClass()).refresh();
+                Map<String, Object> params = new HashMap<>();
+                params.put("key", dependent.keyField());
+                params.put("target", dependent.targetField());
+                params.put("values", new HashMap<>(changed));
+                var request = new UpdateByQueryRequest(index)
+                        .setQuery(truncated ? QueryBuilders.existsQuery(dependent.keyField())
+                                : QueryBuilders.termsQuery(dependent.keyField(), changed.keySet()))
+                        .setScript(new Script(ScriptType.INLINE, "painless", UPDATE_SCRIPT, params))
+                        .setRefresh(waitForRefresh);
+                try {
+                    var res = client.updateByQuery(request, RequestOptions.DEFAULT);
+                    if (!res.getBulkFailures().isEmpty() || !res.getSearchFailures().isEmpty()) {
+                        throw new IllegalStateException("Could not update %s of %s: %s %s".formatted(dependent.targetField(), index,
+                                res.getBulkFailures(), res.getSearchFailures()));
+                    }
+                    log.debug("Updated {} documents of {} after {} changes of {}.{}", res.getUpdated(), index,
+                            truncated ? "all" : changed.size(), table, valueColumn);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not update " + index, e);
+                }
+                searchCacheInvalidator.collectAll(dependent.documentClass());
+            }
+            changed.clear();
+            truncated = false;
+        }
+    }
+
+    /*
+     * caches hashed by table and value column
+     */
+    private final Map<String, ReferenceCache> cacheByColumn = new HashMap<>();
+    private final Map<String, List<ReferenceCache>> cachesByTable = new HashMap<>();
+    private Counter loads;
+
+    @PostConstruct
+    private void init() {
+        loads = meterRegistry.counter("cdc.enrichment.loads");
+    }
+
+    /**
+     * Load the reference tables of the enrichments.
+     *
+     * @param columnByProperty - table columns of the entity hashed by JPA property names
+     * @return lookups of the enriched properties for {@link NdjsonDocumentWriter#compile(org.springframework.data.elasticsearch.core.mapping.ElasticsearchPersistentEntity, Map, Map)}
+     */
+    public Map<String, NdjsonDocumentWriter.Lookup> register(Class<?> documentClass, List<Enrichment> enrichments,
+                                                            Map<String, String> columnByProperty) {
+        var documentEntity = operations.getElasticsearchConverter().getMappingContext().getRequiredPersistentEntity(documentClass);
+        Map<String, NdjsonDocumentWriter.Lookup> res = new HashMap<>();
+        for (Enrichment enrichment : enrichments) {
+            String keyColumn = columnByProperty.get(enrichment.keyProperty());
+            if (Objects.isNull(keyColumn)) {
+                throw new IllegalStateException("Enrichment %s: %s is not mapped to a column".formatted(enrichment.property(), enrichment.keyProperty()));
+            }
+            var cache = cacheByColumn.computeIfAbsent(enrichment.referenceTable() + "." + enrichment.referenceValueColumn(), k -> {
+                var created = new ReferenceCache(enrichment.referenceTable(), enrichment.referenceKeyColumn(), enrichment.referenceValueColumn());
+                created.load();
+                cachesByTable.computeIfAbsent(enrichment.referenceTable(), t -> new ArrayList<>()).add(created);
+                return created;
+            });
+            cache.dependents.add(new Dependent(documentClass,
+                    documentEntity.getRequiredPersistentProperty(enrichment.keyProperty()).getFieldName(),
+                    documentEntity.getRequiredPersistentProperty(enrichment.property()).getFieldName()));
+            res.put(enrichment.property(), new NdjsonDocumentWriter.Lookup(keyColumn, cache::get));
+        }
+        return res;
+    }
+
+    /**
+     * Update the caches by an operation on a reference table.
+     */
+    public void apply(TransactionOperation op) {
+        var caches = cachesByTable.get(op.getTableName());
+        if (Objects.nonNull(caches)) {
+            caches.forEach(cache -> cache.apply(op));
+        }
+    }
+
+    /**
+     * The chunk is acknowledged. Update the documents that refer to changed reference rows.
+     *
+     * @param waitForRefresh - the updates must be visible in search results on return
+     */
+    public void flush(boolean waitForRefresh) {
+        cacheByColumn.values().forEach(cache -> cache.flush(waitForRefresh));
+    }
+
+    /**
+     * Prepare for a new WAL scan.
+     */
+    public void reset() {
+        cacheByColumn.values().forEach(ReferenceCache::reset);
+    }
+}
@@ -0,0 +1,106 @@
+package org.rent.app.service.cdc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * IndexSwapService
+ * <p>
+ * Handles TRUNCATE of a table without deleting documents one by one.
+ * A new empty index with the settings and mapping of the ELK document is created
+ * and replaces the old one behind the alias with the index name of the document in one atomic request.
+ * The old index is deleted in the background.
+ * </p>
+ * <p>
+ * The first swap replaces the concrete index created by Spring Data with the alias.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class IndexSwapService {
+    @Autowired
+    private RestHighLevelClient client;
+    @Autowired
+    private ElasticsearchOperations operations;
+    @Autowired
+    @Qualifier("indexMaintenanceTaskExecutor")
+    private Executor maintenanceExecutor;
+
+    /**
+     * Replace the index of the document class with a new empty index.
+     *
+     * @param documentClass - ELK document class
+     * @throws IllegalStateException if the new index can not be created or swapped
+     */
+    public void swap(Class<?> documentClass) {
+        String alias = operations.getIndexCoordinatesFor(documentClass).getIndexName();
+        String newIndex = alias + "-" + System.currentTimeMillis();
+        var indexOps = operations.indexOps(documentClass);
+        operations.indexOps(IndexCoordinates.of(newIndex)).create(indexOps.createSettings(), indexOps.createMapping());
+        try {
+            var request = new IndicesAliasesRequest()
+                    .addAliasAction(AliasActions.add().index(newIndex).alias(alias));
+            Set<String> oldIndices;
+            if (client.indices().existsAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT)) {
+                oldIndices = client.indices().getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT).getAliases().keySet();
+                request.addAliasAction(AliasActions.remove().indices(oldIndices.toArray(String[]::new)).alias(alias));
+            } else if (client.indices().exists(new GetIndexRequest(alias), RequestOptions.DEFAULT)) {
+                // a concrete index is removed by the same atomic request
+                oldIndices = Set.of();
+                request.addAliasAction(AliasActions.removeIndex().index(alias));
+            } else {
+                oldIndices = Set.of();
+            }
+            client.indices().updateAliases(request, RequestOptions.DEFAULT);
+            log.info("Index {} is truncated: {} is swapped in, {} are deleted in background", alias, newIndex, oldIndices);
+            if (!oldIndices.isEmpty()) {
+                maintenanceExecutor.execute(() -> deleteIndices(oldIndices));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't swap index %s with %s".formatted(alias, newIndex), e);
+        }
+    }
+
+    /**
+     * @return the uuid of the concrete index behind the index name of the document class
+     * or null if there is no index. A recreated or swapped index has a new uuid.
+     */
+    public String getIndexUuid(Class<?> documentClass) {
+        String name = operations.getIndexCoordinatesFor(documentClass).getIndexName();
+        try {
+            if (!client.indices().exists(new GetIndexRequest(name), RequestOptions.DEFAULT)) {
+                return null;
+            }
+            var response = client.indices().get(new GetIndexRequest(name), RequestOptions.DEFAULT);
+            // the alias points to exactly one index
+            return response.getSetting(response.getIndices()[0], "index.uuid");
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't get the uuid of index " + name, e);
+        }
+    }
+
+    private void deleteIndices(Set<String> indices) {
+        try {
+            client.indices().delete(new DeleteIndexRequest(indices.toArray(String[]::new)), RequestOptions.DEFAULT);
+        } catch (IOException | RuntimeException e) {
+            log.error("Can't delete old indices {}", indices, e);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package org.rent.app.service.cdc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * LongLongMappedMap
+ * <p>
+ * A primitive long to long hash map with open addressing (linear probing) in a memory-mapped file.
+ * A slot takes 16 bytes, so 100M keys take about 4 GB at the load factor 0.7 and nothing of it is on the heap.
+ * The file survives restarts. The map grows by rehashing into a new file that atomically replaces the old one.
+ * </p>
+ * <p>
+ * Values must be positive, 0 marks an empty slot and is returned for absent keys.
+ * Keys are never removed, {@link #clear(long)} drops all keys and sets the floor,
+ * the lowest value every key is considered to have.
+ * The header also keeps a short owner string, e.g. the id of the data the values are about.
+ * The map is not thread safe.
+ * </p>
+ */
+public class LongLongMappedMap implements Closeable {
+    public static final long NO_VALUE = 0L;
+
+    private static final long MAGIC = 0x4C534E4D41503031L; // LSNMAP01
+    private static final int HEADER_BYTES = 64; // magic, capacity, size, floor, owner
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int FLOOR_OFFSET = 24;
+    private static final int OWNER_OFFSET = 32;
+    private static final int OWNER_BYTES = 32; // ASCII, padded with zeros
+    private static final int SLOT_BYTES = 16; // key, value
+    private static final int SLOTS_PER_SEGMENT_SHIFT = 26; // 1 GB per mapped segment
+    private static final long SLOTS_PER_SEGMENT_MASK = (1L << SLOTS_PER_SEGMENT_SHIFT) - 1;
+    private static final double MAX_LOAD = 0.7;
+    private static final long MIN_CAPACITY = 1 << 10;
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+    private long capacity; // power of 2
+    private long mask;
+    private long size;
+    private long floor;
+    private String owner;
+
+    private LongLongMappedMap(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Open the map or create it if the file does not exist.
+     *
+     * @param expectedKeys - the initial capacity is chosen for this number of keys
+     */
+    public static LongLongMappedMap open(Path path, long expectedKeys) throws IOException {
+        var map = new LongLongMappedMap(path);
+        if (Files.exists(path) && Files.size(path) >= HEADER_BYTES) {
+            map.map();
+        } else {
+            create(path, capacityFor(expectedKeys), NO_VALUE, "");
+            map.map();
+        }
+        return map;
+    }
+
+    public long get(long key) {
+        long slot = find(key);
+        return slot < 0 ? NO_VALUE : value(slot);
+    }
+
+    /**
+     * @param value - a positive value
+     */
+    public void put(long key, long value) throws IOException {
+        if (value <= NO_VALUE) {
+            throw new IllegalArgumentException("Value must be positive: " + value);
+        }
+        if (size + 1 > capacity * MAX_LOAD) {
+            grow();
+        }
+        long slot = index(key);
+        while (true) {
+            var segment = segments[(int) (slot >>> SLOTS_PER_SEGMENT_SHIFT)];
+            int offset = (int) ((slot & SLOTS_PER_SEGMENT_MASK) * SLOT_BYTES);
+            long current = segment.getLong(offset + 8);
+            if (current == NO_VALUE) {
+                // the key is written before the value, a torn slot looks empty
+                segment.putLong(offset, key);
+                segment.putLong(offset + 8, value);
+                size += 1;
+                header.putLong(SIZE_OFFSET, size);
+                return;
+            }
+            if (segment.getLong(offset) == key) {
+                segment.putLong(offset + 8, value);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long getFloor() {
+        return floor;
+    }
+
+    /**
+     * @return the owner or an empty string if it is not set
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @param owner - up to 32 ASCII characters
+     */
+    public void setOwner(String owner) {
+        header.put(OWNER_OFFSET, encodeOwner(owner));
+        this.owner = owner;
+    }
+
+    /**
+     * Drop all keys. The owner is kept.
+     *
+     * @param floor - the lowest value of every key
+     */
+    public void clear(long floor) throws IOException {
+        Path tmp = tmpPath();
+        create(tmp, MIN_CAPACITY, floor, owner);
+        replaceWith(tmp);
+    }
+
+    /**
+     * Write the changes to the storage device.
+     */
+    public void force() {
+        header.force();
+        for (MappedByteBuffer segment : segments) segment.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            force();
+            channel.close();
+        }
+    }
+
+    private long find(long key) {
+        long slot = index(key);
+        while (true) {
+            var segment = segments[(int) (slot >>> SLOTS_PER_SEGMENT_SHIFT)];
+            int offset = (int) ((slot & SLOTS_PER_SEGMENT_MASK) * SLOT_BYTES);
+            if (segment.getLong(offset + 8) == NO_VALUE) return -1;
+            if (segment.getLong(offset) == key) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private long value(long slot) {
+        return segments[(int) (slot >>> SLOTS_PER_SEGMENT_SHIFT)].getLong((int) ((slot & SLOTS_PER_SEGMENT_MASK) * SLOT_BYTES) + 8);
+    }
+
+    private long index(long key) {
+        // murmur3 finalizer, ids are sequential
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key & mask;
+    }
+
+    private void grow() throws IOException {
+        Path tmp = tmpPath();
+        create(tmp, capacity << 1, floor, owner);
+        try (var bigger = new LongLongMappedMap(tmp)) {
+            bigger.map();
+            for (long slot = 0; slot < capacity; slot++) {
+                var segment = segments[(int) (slot >>> SLOTS_PER_SEGMENT_SHIFT)];
+                int offset = (int) ((slot & SLOTS_PER_SEGMENT_MASK) * SLOT_BYTES);
+                long value = segment.getLong(offset + 8);
+                if (value != NO_VALUE) bigger.put(segment.getLong(offset), value);
+            }
+        }
+        replaceWith(tmp);
+    }
+
+    private Path tmpPath() {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /*
+     * the mapped file is never truncated, it is replaced by a complete new file
+     */
+    private void replaceWith(Path tmp) throws IOException {
+        close();
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        map();
+    }
+
+    private static void create(Path path, long capacity, long floor, String owner) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // a sparse file, the pages of empty slots are zeros
+            channel.write(ByteBuffer.allocate(1), HEADER_BYTES + capacity * SLOT_BYTES - 1);
+            var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+            header.putLong(0, MAGIC);
+            header.putLong(CAPACITY_OFFSET, capacity);
+            header.putLong(SIZE_OFFSET, 0);
+            header.putLong(FLOOR_OFFSET, floor);
+            header.put(OWNER_OFFSET, encodeOwner(owner));
+            channel.write(header, 0);
+            channel.force(true);
+        }
+    }
+
+    private void map() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.nativeOrder());
+        if (header.getLong(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Not a map file " + path);
+        }
+        capacity = header.getLong(CAPACITY_OFFSET);
+        mask = capacity - 1;
+        size = header.getLong(SIZE_OFFSET);
+        floor = header.getLong(FLOOR_OFFSET);
+        owner = decodeOwner(header);
+        long segmentCount = Math.max(1, capacity >>> SLOTS_PER_SEGMENT_SHIFT);
+        segments = new MappedByteBuffer[(int) segmentCount];
+        long slotsPerSegment = Math.min(capacity, 1L << SLOTS_PER_SEGMENT_SHIFT);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * slotsPerSegment * SLOT_BYTES,
+                    slotsPerSegment * SLOT_BYTES);
+            segments[i].order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private static byte[] encodeOwner(String owner) {
+        byte[] bytes = owner.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > OWNER_BYTES) {
+            throw new IllegalArgumentException("Owner is longer than %d characters: %s".formatted(OWNER_BYTES, owner));
+        }
+        byte[] res = new byte[OWNER_BYTES];
+        System.arraycopy(bytes, 0, res, 0, bytes.length);
+        return res;
+    }
+
+    private static String decodeOwner(ByteBuffer header) {
+        byte[] bytes = new byte[OWNER_BYTES];
+        header.get(OWNER_OFFSET, bytes);
+        int length = 0;
+        while (length < OWNER_BYTES && bytes[length] != 0) length++;
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static long capacityFor(long expectedKeys) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expectedKeys) capacity <<= 1;
+        return capacity;
+    }
+}
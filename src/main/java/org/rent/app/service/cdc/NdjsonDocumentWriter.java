@@ -0,0 +1,283 @@
+package org.rent.app.service.cdc;
+
+import org.springframework.data.elasticsearch.core.mapping.ElasticsearchPersistentEntity;
+import org.springframework.data.elasticsearch.core.mapping.ElasticsearchPersistentProperty;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * NdjsonDocumentWriter
+ * <p>
+ * Writes column values of a CDC record directly into a bulk request body.
+ * The writer is compiled once per ELK document class from its mapping annotations:
+ * every document property is bound to the table column of the JPA property with the same name
+ * (the same rule as in {@link org.rent.app.service.ProductMapper}).
+ * No JPA entity, ELK document or JSON tree is created for a row.
+ * </p>
+ * <p>
+ * A writer compiled with a routing property routes every action by the column value of that property,
+ * so an action of a row goes to the shard that holds the documents with the same value.
+ * </p>
+ */
+public class NdjsonDocumentWriter {
+    /*
+     * test_decoding prints timestamps as '2022-07-18 10:11:12.123456'
+     */
+    private static final DateTimeFormatter PG_TIMESTAMP = new DateTimeFormatterBuilder()
+            .append(DateTimeFormatter.ISO_LOCAL_DATE)
+            .appendLiteral(' ')
+            .append(DateTimeFormatter.ISO_LOCAL_TIME)
+            .toFormatter();
+    private static final Set<Class<?>> NUMBERS = Set.of(
+            Long.class, Integer.class, Short.class, Byte.class, Double.class, Float.class, BigDecimal.class, BigInteger.class,
+            long.class, int.class, short.class, byte.class, double.class, float.class);
+
+    @FunctionalInterface
+    private interface ValueWriter {
+        void write(BulkBuffer buffer, String value);
+    }
+
+    private record FieldPlan(
+            byte[] name, // "fieldName": with a leading comma if it is not the first field
+            String column,
+            Function<String, String> lookup, // maps the column value to the field value, null if the column value is written
+            boolean storeNull,
+            ValueWriter writer) {
+    }
+
+    /**
+     * A document property that is not a table column: its value is looked up by the value of a key column.
+     *
+     * @param column - the key column
+     * @param lookup - returns the property value for the key or null
+     */
+    public record Lookup(String column, Function<String, String> lookup) {
+    }
+
+    private final Class<?> documentClass;
+    private final String indexName;
+    private final byte[] indexNameJson;
+    private final String idColumn;
+    private final String routingColumn; // null if documents are routed by id
+    private final byte[] typeHint; // "_class":"..." or null
+    private final List<FieldPlan> fields;
+
+    private NdjsonDocumentWriter(Class<?> documentClass, String indexName, String idColumn, String routingColumn, byte[] typeHint,
+                                 List<FieldPlan> fields) {
+        this.documentClass = documentClass;
+        this.indexName = indexName;
+        this.indexNameJson = new BulkBuffer(indexName.length() + 2).writeJsonString(indexName).toString().getBytes(StandardCharsets.UTF_8);
+        this.idColumn = idColumn;
+        this.routingColumn = routingColumn;
+        this.typeHint = typeHint;
+        this.fields = fields;
+    }
+
+    /**
+     * Compile a writer for the ELK document class.
+     *
+     * @param entity           - mapping of the ELK document
+     * @param columnByProperty - table columns hashed by JPA property names
+     * @return the writer
+     * @throws IllegalArgumentException if a document property has no column or its type is not supported
+     */
+    public static NdjsonDocumentWriter compile(ElasticsearchPersistentEntity<?> entity, Map<String, String> columnByProperty) {
+        return compile(entity, columnByProperty, Map.of());
+    }
+
+    /**
+     * Compile a writer for the ELK document class with looked up properties.
+     *
+     * @param entity           - mapping of the ELK document
+     * @param columnByProperty - table columns hashed by JPA property names
+     * @param lookupByProperty - lookups of String document properties that are not table columns
+     * @return the writer
+     * @throws IllegalArgumentException if a document property has no column or its type is not supported
+     */
+    public static NdjsonDocumentWriter compile(ElasticsearchPersistentEntity<?> entity, Map<String, String> columnByProperty,
+                                               Map<String, Lookup> lookupByProperty) {
+        return compile(entity, columnByProperty, lookupByProperty, null);
+    }
+
+    /**
+     * Compile a writer for the ELK document class with looked up properties and custom routing.
+     *
+     * @param entity           - mapping of the ELK document
+     * @param columnByProperty - table columns hashed by JPA property names
+     * @param lookupByProperty - lookups of String document properties that are not table columns
+     * @param routingProperty  - the document property whose value routes the actions or null to route by id
+     * @return the writer
+     * @throws IllegalArgumentException if a document property has no column or its type is not supported
+     */
+    public static NdjsonDocumentWriter compile(ElasticsearchPersistentEntity<?> entity, Map<String, String> columnByProperty,
+                                               Map<String, Lookup> lookupByProperty, String routingProperty) {
+        var idProperty = entity.getRequiredIdProperty();
+        String idColumn = requireColumn(entity, idProperty, columnByProperty);
+        String routingColumn = null;
+        if (Objects.nonNull(routingProperty)) {
+            var property = entity.getPersistentProperty(routingProperty);
+            if (Objects.isNull(property) || lookupByProperty.containsKey(routingProperty)) {
+                throw new IllegalArgumentException("%s.%s can not route documents, it must be a property mapped to a column"
+                        .formatted(entity.getType().getSimpleName(), routingProperty));
+            }
+            routingColumn = requireColumn(entity, property, columnByProperty);
+        }
+        byte[] typeHint = null;
+        if (entity.writeTypeHints()) {
+            var alias = entity.getTypeAlias();
+            String hint = alias.isPresent() ? String.valueOf(alias.getValue()) : entity.getType().getName();
+            typeHint = new BulkBuffer(64).writeJsonString("_class").write((byte) ':').writeJsonString(hint)
+                    .toString().getBytes(StandardCharsets.UTF_8);
+        }
+        List<FieldPlan> fields = new ArrayList<>();
+        for (ElasticsearchPersistentProperty property : entity) {
+            if (!property.isWritable() || property.isSeqNoPrimaryTermProperty()) continue;
+            var lookup = lookupByProperty.get(property.getName());
+            if (Objects.nonNull(lookup) && !String.class.equals(property.getType())) {
+                throw new IllegalArgumentException("%s.%s is looked up, it must be a String".formatted(entity.getType().getSimpleName(), property.getName()));
+            }
+            String column = Objects.nonNull(lookup) ? lookup.column() : requireColumn(entity, property, columnByProperty);
+            var name = new BulkBuffer(32);
+            if (!fields.isEmpty() || Objects.nonNull(typeHint)) name.write((byte) ',');
+            name.writeJsonString(property.getFieldName()).write((byte) ':');
+            Function<String, String> mapping = Objects.nonNull(lookup) ? lookup.lookup()
+                    : NUMBERS.contains(property.getType()) ? NdjsonDocumentWriter::finiteOrNull : null;
+            fields.add(new FieldPlan(name.toString().getBytes(StandardCharsets.UTF_8), column,
+                    mapping, property.storeNullValue(), valueWriter(entity, property)));
+        }
+        return new NdjsonDocumentWriter(entity.getType(), entity.getIndexCoordinates().getIndexName(), idColumn, routingColumn,
+                typeHint, List.copyOf(fields));
+    }
+
+    public Class<?> getDocumentClass() {
+        return documentClass;
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public String getId(Map<String, String> columnValues) {
+        return columnValues.get(idColumn);
+    }
+
+    public boolean isRouted() {
+        return Objects.nonNull(routingColumn);
+    }
+
+    /**
+     * @return the routing value of the row or null if the row is routed by id
+     * @throws IllegalStateException if the routing column is not in the column values
+     */
+    public String getRouting(Map<String, String> columnValues) {
+        if (Objects.isNull(routingColumn)) {
+            return null;
+        }
+        if (!columnValues.containsKey(routingColumn)) {
+            // DELETE records contain only the key columns unless the replica identity is full
+            throw new IllegalStateException("Routing column %s is not in WAL. Set REPLICA IDENTITY FULL".formatted(routingColumn));
+        }
+        return columnValues.get(routingColumn);
+    }
+
+    /**
+     * Write an index action and the document source.
+     */
+    public void writeIndex(BulkBuffer buffer, Map<String, String> columnValues, long version) {
+        writeAction(buffer, "{\"index\":", columnValues, version);
+        writeSource(buffer, columnValues);
+        buffer.write((byte) '\n');
+        buffer.endAction();
+    }
+
+    /**
+     * Write the document source only, as it is stored in the index.
+     */
+    public void writeSource(BulkBuffer buffer, Map<String, String> columnValues) {
+        buffer.write((byte) '{');
+        if (Objects.nonNull(typeHint)) buffer.write(typeHint);
+        for (FieldPlan field : fields) {
+            String value = columnValues.get(field.column());
+            if (Objects.nonNull(value) && Objects.nonNull(field.lookup())) {
+                value = field.lookup().apply(value);
+            }
+            if (Objects.isNull(value)) {
+                if (field.storeNull()) buffer.write(field.name()).writeAscii("null");
+                continue;
+            }
+            buffer.write(field.name());
+            field.writer().write(buffer, value);
+        }
+        buffer.write((byte) '}');
+    }
+
+    /**
+     * Write a delete action. Only the id column and the routing column are required.
+     */
+    public void writeDelete(BulkBuffer buffer, Map<String, String> columnValues, long version) {
+        writeAction(buffer, "{\"delete\":", columnValues, version);
+        buffer.endAction();
+    }
+
+    private void writeAction(BulkBuffer buffer, String action, Map<String, String> columnValues, long version) {
+        String id = Objects.requireNonNull(getId(columnValues), idColumn);
+        String routing = getRouting(columnValues);
+        buffer.writeAscii(action)
+                .writeAscii("{\"_index\":").write(indexNameJson)
+                .writeAscii(",\"_id\":").writeJsonString(id);
+        if (Objects.nonNull(routing)) {
+            buffer.writeAscii(",\"routing\":").writeJsonString(routing);
+        }
+        buffer.writeAscii(",\"version\":").writeLong(version)
+                .writeAscii(",\"version_type\":\"external\"}}\n");
+    }
+
+    private static String requireColumn(ElasticsearchPersistentEntity<?> entity, ElasticsearchPersistentProperty property,
+                                        Map<String, String> columnByProperty) {
+        String column = columnByProperty.get(property.getName());
+        if (Objects.isNull(column)) {
+            throw new IllegalArgumentException("%s.%s is not mapped to a column".formatted(entity.getType().getSimpleName(), property.getName()));
+        }
+        return column;
+    }
+
+    /*
+     * test_decoding prints NaN, Infinity and -Infinity of float and numeric columns, JSON has no such literals.
+     * They are written as null, like Elasticsearch would store them.
+     */
+    private static String finiteOrNull(String value) {
+        return value.equals("NaN") || value.endsWith("Infinity") ? null : value;
+    }
+
+    private static ValueWriter valueWriter(ElasticsearchPersistentEntity<?> entity, ElasticsearchPersistentProperty property) {
+        Class<?> type = property.getType();
+        if (property.hasPropertyValueConverter()) {
+            // dates: parse the test_decoding text and format as declared by @Field(format = ...)
+            var converter = property.getPropertyValueConverter();
+            if (LocalDateTime.class.equals(type)) {
+                return (buffer, value) -> buffer.writeJsonString(converter.write(LocalDateTime.parse(value, PG_TIMESTAMP)).toString());
+            }
+            if (LocalDate.class.equals(type)) {
+                return (buffer, value) -> buffer.writeJsonString(converter.write(LocalDate.parse(value)).toString());
+            }
+        } else if (NUMBERS.contains(type) || Boolean.class.equals(type) || boolean.class.equals(type)) {
+            // test_decoding prints finite numbers and booleans as JSON compatible literals
+            return BulkBuffer::writeAscii;
+        } else if (String.class.equals(type)) {
+            return BulkBuffer::writeJsonString;
+        }
+        throw new IllegalArgumentException("%s.%s has unsupported type %s".formatted(entity.getType().getSimpleName(), property.getName(), type));
+    }
+}
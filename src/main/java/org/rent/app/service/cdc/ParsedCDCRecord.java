@@ -0,0 +1,25 @@
+package org.rent.app.service.cdc;
+
+import org.rent.app.domain.cdc.Lsn;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * ParsedCDCRecord
+ * <p>
+ * A CDC record parsed by {@link TestDecodingParser}.
+ * </p>
+ */
+public record ParsedCDCRecord(
+        Kind kind,
+        long xid, // xid of the record, it is checked against BEGIN/COMMIT data
+        Lsn lsn,
+        Instant commitTime, // COMMIT only, null if it is unknown
+        List<TransactionOperation> operations // CHANGE only
+) {
+    /*
+     * MESSAGE is a message emitted by pg_logical_emit_message(), e.g. a heartbeat
+     */
+    public enum Kind {BEGIN, COMMIT, CHANGE, MESSAGE}
+}
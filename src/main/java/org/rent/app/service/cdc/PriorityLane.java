@@ -0,0 +1,183 @@
+package org.rent.app.service.cdc;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.XContentType;
+import org.rent.app.domain.cdc.Lsn;
+import org.rent.app.repository.cdc.SlotChangesRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.Future;
+
+/**
+ * PriorityLane
+ * <p>
+ * Interactive writes are not stuck behind a bulk import. The slot is read in commit order only,
+ * so while it retains more than {@code cdc.priority.backlog-wal-bytes} of WAL an interactive write does not wait
+ * for the pipeline: it indexes its document directly and wakes the pipeline up, which drains the backlog in the background.
+ * The document is searchable on return: the write waits for the next refresh, or forces one in catch-up mode,
+ * where the indices are not refreshed automatically.
+ * </p>
+ * <p>
+ * The external version of a priority document is {@link #getVersion()}, read in the writing transaction after the row is locked.
+ * Operations on the row committed before the write are before this version, the operation of the write and later ones
+ * are after it. So an older operation drained later does not overwrite the priority document, and the pipeline replaces it
+ * with the document of the write once it reaches the write, e.g. with enriched properties.
+ * The pipeline also maintains projections and the applied lsn index in lsn order. The priority lane only records
+ * the versions of its deletes in the applied lsn index, as tombstones of the index do not outlive a long backlog.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class PriorityLane {
+    @Value("${cdc.priority.enabled:true}")
+    private boolean enabled;
+    @Value("${cdc.priority.backlog-wal-bytes:67108864}")
+    private long backlogWalBytes;
+
+    @Autowired
+    private TestDecodingCDCService cdcService;
+    @Autowired
+    private SlotLagGuard lagGuard;
+    @Autowired
+    private CatchUpModeService catchUpMode;
+    @Autowired
+    private SlotChangesRepository slotChangesRepository;
+    @Autowired
+    private RestHighLevelClient client;
+    @Autowired
+    private ElasticsearchOperations operations;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private TransactionOperationProcessor processor;
+    @Autowired
+    private AppliedLsnIndex appliedLsns;
+
+    private Counter writes;
+    /*
+     * the last drain started by a priority write, guarded by this
+     */
+    private Future<Integer> drain;
+
+    @PostConstruct
+    private void init() {
+        writes = meterRegistry.counter("cdc.priority.writes");
+    }
+
+    /**
+     * @return true if an interactive write has to take the priority lane
+     */
+    public boolean isBacklogged() {
+        // the value polled by the lag guard, a write does not query the slot
+        return enabled && lagGuard.getRetainedWalBytes() > backlogWalBytes;
+    }
+
+    /**
+     * Call it in the writing transaction after the rows of the write are locked and before they are changed.
+     *
+     * @return the external version of the priority documents of the write
+     */
+    public long getVersion() {
+        return versionOf(slotChangesRepository.getCurrentWalInsertLsn());
+    }
+
+    /*
+     * A WAL record takes at least 24 bytes, its header. The operations of the write start at or after the insert lsn.
+     * An operation committed before is followed by its COMMIT record, so it starts at least 48 bytes before the insert lsn.
+     * The version is 24 bytes below the insert lsn: an enrichment flush increments the version of the document by one
+     * (see EnrichmentService), and up to 23 flushes before the pipeline reaches the write keep it below the write's
+     * own operation, which replaces the document with the enriched one.
+     */
+    static final long VERSION_GAP = 24;
+
+    static long versionOf(Lsn insertLsn) {
+        return insertLsn.value() - VERSION_GAP;
+    }
+
+    /*
+     * wait_for would wait for nothing while catch-up mode disables the refresh
+     */
+    static WriteRequest.RefreshPolicy refreshPolicy(boolean catchUp) {
+        return catchUp ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL;
+    }
+
+    /**
+     * Index a document of a committed write and wait until it is searchable.
+     *
+     * @param routing - the routing value or null to route by id
+     */
+    public void index(Object id, Object document, String routing, long version) {
+        var index = operations.getIndexCoordinatesFor(document.getClass()).getIndexName();
+        var request = new IndexRequest(index)
+                .id(operations.stringIdRepresentation(id))
+                .source(operations.getElasticsearchConverter().mapObject(document).toJson(), XContentType.JSON)
+                .routing(routing)
+                .version(version)
+                .versionType(VersionType.EXTERNAL)
+                .setRefreshPolicy(refreshPolicy(catchUpMode.isActive()));
+        try {
+            client.index(request, RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.CONFLICT) throw e;
+            log.debug("The index already has a newer version of {} {}", index, id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not index %s %s".formatted(index, id), e);
+        }
+        writes.increment();
+        drainInBackground();
+    }
+
+    /**
+     * Delete a document of a committed write and wait until it is not searchable.
+     *
+     * @param routing - the routing value or null to route by id
+     */
+    public void delete(Class<?> documentClass, Object id, String routing, long version) {
+        var index = operations.getIndexCoordinatesFor(documentClass).getIndexName();
+        var request = new DeleteRequest(index, operations.stringIdRepresentation(id))
+                .routing(routing)
+                .version(version)
+                .versionType(VersionType.EXTERNAL)
+                .setRefreshPolicy(refreshPolicy(catchUpMode.isActive()));
+        try {
+            // a missing document leaves a tombstone of the version
+            client.delete(request, RequestOptions.DEFAULT);
+            // the tombstone is discarded after index.gc_deletes, the applied lsn index keeps the version
+            appliedLsns.deletedOutOfOrder(processor.getTableName(documentClass), operations.stringIdRepresentation(id), version);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.CONFLICT) throw e;
+            log.debug("The index already has a newer version of {} {}", index, id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not delete %s %s".formatted(index, id), e);
+        }
+        writes.increment();
+        drainInBackground();
+    }
+
+    /*
+     * one drain is queued at a time, it processes everything committed before it starts
+     */
+    private synchronized void drainInBackground() {
+        if (Objects.isNull(drain) || drain.isDone()) {
+            drain = cdcService.processNextCDCChunkInBackground();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.rent.app.service.cdc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.rent.app.dto.ProductSearchQuery;
+import org.rent.app.service.SearchResultCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * SearchCacheInvalidator
+ * <p>
+ * Collects the cache tags of the rows indexed in a chunk and evicts the tagged search results
+ * from {@link SearchResultCache} once per chunk, after the index acknowledges the chunk.
+ * Both old and new values tag a row, so a product moved to another category leaves both listings.
+ * If the old values are not in WAL, all cached results of the document class are evicted.
+ * </p>
+ * <p>
+ * If the chunk is not refreshed, its changes become searchable only after the next refresh,
+ * and a result loaded meanwhile may be stale. So the tags are evicted once more after {@code search-cache.refresh-delay-ms}.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class SearchCacheInvalidator {
+    @Value("${search-cache.refresh-delay-ms:1500}")
+    private long refreshDelayMs;
+
+    @Autowired
+    private SearchResultCache cache;
+    @Autowired
+    @Qualifier("searchCacheEvictionScheduler")
+    private TaskScheduler scheduler;
+
+    private record TagColumns(Class<?> documentClass, Map<String, String> columnByProperty) {
+    }
+
+    private final Map<String, TagColumns> tagColumnsByTableName = new HashMap<>();
+    /*
+     * tags of the current chunk. Accessed by the CDC thread only.
+     */
+    private Set<String> tags = new HashSet<>();
+
+    /**
+     * @param columnByProperty - columns of the tag properties hashed by property names
+     */
+    public void register(String tableName, Class<?> documentClass, Map<String, String> columnByProperty) {
+        tagColumnsByTableName.put(tableName, new TagColumns(documentClass, Map.copyOf(columnByProperty)));
+    }
+
+    public void collect(TransactionOperation op) {
+        var tagColumns = tagColumnsByTableName.get(op.getTableName());
+        if (Objects.isNull(tagColumns)) {
+            return;
+        }
+        tags.add(SearchResultCache.tagAll(tagColumns.documentClass()));
+        switch (op.getOperationType()) {
+            case INSERT -> collect(tagColumns, op.getColumnValues());
+            case UPDATE -> {
+                collect(tagColumns, op.getColumnValues());
+                if (Objects.isNull(op.getOldColumnValues()) || !collect(tagColumns, op.getOldColumnValues())) {
+                    collectAll(tagColumns.documentClass());
+                }
+            }
+            case DELETE -> {
+                if (!collect(tagColumns, op.getColumnValues())) collectAll(tagColumns.documentClass());
+            }
+            case TRUNCATE -> collectAll(tagColumns.documentClass());
+        }
+    }
+
+    /**
+     * Evict the collected tags.
+     *
+     * @param refreshed - the changes are already visible in search results
+     */
+    public void flush(boolean refreshed) {
+        if (tags.isEmpty()) {
+            return;
+        }
+        Set<String> chunkTags = tags;
+        tags = new HashSet<>();
+        cache.evict(chunkTags);
+        if (!refreshed) {
+            scheduler.schedule(() -> cache.evict(chunkTags), Instant.now().plusMillis(refreshDelayMs));
+        }
+    }
+
+    public void reset() {
+        tags.clear();
+    }
+
+    /*
+     * @return false if a tag column is not in the row
+     */
+    private boolean collect(TagColumns tagColumns, Map<String, String> row) {
+        boolean complete = true;
+        for (var e : tagColumns.columnByProperty().entrySet()) {
+            if (!row.containsKey(e.getValue())) {
+                complete = false;
+                continue;
+            }
+            String value = ProductSearchQuery.normalize(row.get(e.getValue()));
+            if (Objects.nonNull(value)) {
+                tags.add(SearchResultCache.tag(tagColumns.documentClass(), e.getKey(), value));
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Evict all results of the document class once the chunk is acknowledged.
+     */
+    public void collectAll(Class<?> documentClass) {
+        tags.add(SearchResultCache.tagDocument(documentClass));
+    }
+}
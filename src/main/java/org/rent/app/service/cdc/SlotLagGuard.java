@@ -0,0 +1,151 @@
+package org.rent.app.service.cdc;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.rent.app.service.WritesRejectedException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * SlotLagGuard
+ * <p>
+ * The slot retains WAL until the changes are indexed. If indexing stops (the index is down, an operation fails),
+ * WAL grows until the database runs out of disk. The guard checks the retained WAL every {@code cdc.lag-guard.check-interval-ms}
+ * and publishes it as the {@code cdc.slot.retained-bytes} gauge.
+ * Above {@code cdc.lag-guard.throttle-wal-bytes} every write is delayed, the delay grows linearly up to
+ * {@code cdc.lag-guard.max-delay-ms}. Above {@code cdc.lag-guard.reject-wal-bytes} writes are rejected
+ * with {@link WritesRejectedException}.
+ * </p>
+ * <p>
+ * On an idle database the slot does not advance while other databases write WAL, so the slot retains it as well.
+ * Every {@code cdc.heartbeat.interval-ms} a heartbeat message is written into WAL and processed,
+ * so the slot releases WAL up to the heartbeat. The same run retries indexing after a failure.
+ * </p>
+ */
+@Slf4j
+@Service
+@Profile("sync")
+public class SlotLagGuard {
+    public static final String METRIC_NAME = "cdc.slot.retained-bytes";
+
+    @Value("${cdc.lag-guard.check-interval-ms:5000}")
+    private long checkIntervalMs;
+    @Value("${cdc.lag-guard.throttle-wal-bytes:4294967296}")
+    private long throttleWalBytes;
+    @Value("${cdc.lag-guard.reject-wal-bytes:8589934592}")
+    private long rejectWalBytes;
+    @Value("${cdc.lag-guard.max-delay-ms:2000}")
+    private long maxDelayMs;
+    @Value("${cdc.heartbeat.interval-ms:60000}")
+    private long heartbeatIntervalMs;
+
+    @Autowired
+    private TestDecodingCDCService cdcService;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    @Qualifier("slotMonitorScheduler")
+    private TaskScheduler scheduler;
+
+    private volatile long retainedWalBytes = 0;
+    /*
+     * the last processing started by a heartbeat. Accessed by the scheduler thread only.
+     */
+    private Future<Integer> heartbeatProcessing;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (throttleWalBytes >= rejectWalBytes) {
+            throw new IllegalStateException("cdc.lag-guard.throttle-wal-bytes must be less than cdc.lag-guard.reject-wal-bytes");
+        }
+        Gauge.builder(METRIC_NAME, this, SlotLagGuard::getRetainedWalBytes)
+                .description("Bytes of WAL retained by the replication slot")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        scheduler.scheduleWithFixedDelay(this::check, Duration.ofMillis(checkIntervalMs));
+        if (heartbeatIntervalMs > 0) {
+            scheduler.scheduleWithFixedDelay(this::heartbeat, Duration.ofMillis(heartbeatIntervalMs));
+        }
+    }
+
+    public long getRetainedWalBytes() {
+        return retainedWalBytes;
+    }
+
+    /**
+     * Call it before a write that is synchronized with the index.
+     *
+     * @throws WritesRejectedException if the slot retains more than {@code cdc.lag-guard.reject-wal-bytes}
+     */
+    public void beforeWrite() {
+        long retained = retainedWalBytes;
+        if (retained > rejectWalBytes) {
+            throw new WritesRejectedException("Indexing is %d bytes of WAL behind, writes are rejected".formatted(retained));
+        }
+        long delayMs = delayMs(retained, throttleWalBytes, rejectWalBytes, maxDelayMs);
+        if (delayMs > 0) {
+            log.debug("Indexing is {} bytes of WAL behind, the write is delayed by {} ms", retained, delayMs);
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WritesRejectedException("Interrupted while the write is delayed");
+            }
+        }
+    }
+
+    static long delayMs(long retained, long throttleWalBytes, long rejectWalBytes, long maxDelayMs) {
+        if (retained <= throttleWalBytes) {
+            return 0;
+        }
+        return Math.min(maxDelayMs, (long) ((double) (retained - throttleWalBytes) / (rejectWalBytes - throttleWalBytes) * maxDelayMs));
+    }
+
+    private void check() {
+        try {
+            long retained = cdcService.getRetainedWalBytes();
+            if (retained > throttleWalBytes && retainedWalBytes <= throttleWalBytes) {
+                log.warn("The slot retains {} bytes of WAL, writes are throttled", retained);
+            } else if (retained <= throttleWalBytes && retainedWalBytes > throttleWalBytes) {
+                log.info("The slot retains {} bytes of WAL, writes are not throttled", retained);
+            }
+            retainedWalBytes = retained;
+        } catch (RuntimeException ex) {
+            log.warn("Could not check the replication slot. {}", ex.getMessage());
+        }
+    }
+
+    private void heartbeat() {
+        try {
+            if (Objects.nonNull(heartbeatProcessing)) {
+                if (!heartbeatProcessing.isDone()) {
+                    // the pipeline is busy, it will reach the previous heartbeat
+                    return;
+                }
+                try {
+                    heartbeatProcessing.get();
+                } catch (ExecutionException ex) {
+                    log.warn("Processing started by a heartbeat failed", ex.getCause());
+                }
+            }
+            log.debug("Heartbeat at {}", cdcService.emitHeartbeat());
+            heartbeatProcessing = cdcService.processNextCDCChunkInBackground();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            log.warn("Could not write a heartbeat. {}", ex.getMessage());
+        }
+    }
+}
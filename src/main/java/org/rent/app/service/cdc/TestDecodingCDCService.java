@@ -1,26 +1,23 @@
 package org.rent.app.service.cdc;
 
 import lombok.extern.slf4j.Slf4j;
-import org.hibernate.ScrollMode;
-import org.hibernate.ScrollableResults;
-import org.rent.app.domain.cdc.CDCRecord;
+import org.rent.app.domain.cdc.Lsn;
 import org.rent.app.domain.cdc.ReplicationSlot;
 import org.rent.app.repository.cdc.ReplicationSlotRepository;
+import org.rent.app.repository.cdc.SlotChangesRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.concurrent.ListenableFuture;
 
 import javax.annotation.PostConstruct;
-import javax.persistence.EntityManager;
-import javax.persistence.PersistenceContext;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.time.Instant;
+import java.util.Objects;
 import java.util.concurrent.Future;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * TestDecodingCDCService
@@ -42,21 +39,50 @@ public class TestDecodingCDCService {
      */
     private static final String SLOT_NAME = "elk_slot";
     private static final String PLUGIN_NAME = "test_decoding";
+    private static final String HEARTBEAT_PREFIX = "elk_heartbeat";
+    /*
+     * the maximal number of CDC records in one chunk. The chunk is extended up to the end of the last transaction.
+     */
+    @Value("${cdc.slot.max-changes-per-chunk:10000}")
+    private int maxChangesPerChunk;
+    @Value("${cdc.catch-up.max-changes-per-chunk:100000}")
+    private int catchUpMaxChangesPerChunk;
 
     @Autowired
     private ReplicationSlotRepository replicationSlotRepository;
 
-    @PersistenceContext
-    private EntityManager em;
+    @Autowired
+    private SlotChangesRepository slotChangesRepository;
 
     @Autowired
     private TransactionOperationProcessor processor;
 
-    private static final Pattern columnTypeValuePattern = Pattern.compile(
-            "(?<column>[^\\[]+)\\[(?<type>[^]]+)]:(?<value>'[^']*'|[^']\\S*)[\\s]?");
-    private static final Pattern tableOperationPattern = Pattern.compile(
-            "table\s(?<table>[^:]+):\s(?<operation>[^:]+):\s");
-    private static final String COLUMN_DELIM = ", ";
+    @Autowired
+    private CommitLatencyRecorder latencyRecorder;
+
+    @Autowired
+    private CDCParseStage parseStage;
+
+    @Autowired
+    private CatchUpModeService catchUpMode;
+
+    @Autowired
+    private ElasticsearchBulkSink sink;
+
+    private TestDecodingParser parser;
+    /*
+     * all transactions committed before this lsn are acknowledged by the index. Written by the CDC thread only.
+     */
+    private volatile Lsn appliedWalLsn = Lsn.ZERO;
+    /*
+     * all transactions committed before this lsn are visible in search results of the refresh indices.
+     * Only a waiting call refreshes, background calls advance appliedWalLsn only. Written by the CDC thread only.
+     */
+    private volatile Lsn refreshedWalLsn = Lsn.ZERO;
+    /*
+     * the event of the current transaction. Accessed by the CDC thread only.
+     */
+    private CDCEvents.TransactionApply transactionEvent;
 
     @PostConstruct
     private void checkReplicationSlot() {
@@ -66,26 +92,147 @@ public class TestDecodingCDCService {
             throw new IllegalStateException(PLUGIN_NAME);
         if (!"logical".equals(replicationSlot.getSlotType()))
             throw new IllegalStateException("logical");
+        parser = new TestDecodingParser(processor::requiresRestore, processor::getNonIdColumns);
     }
 
     ;
 
+    /**
+     * Process all transactions committed before the call.
+     * The WAL is scanned in chunks of about {@code cdc.slot.max-changes-per-chunk} records,
+     * so memory usage does not depend on how far behind the slot is.
+     * The caller waits for the result, so the changes are visible in search results on return.
+     *
+     * @return number of processed transactions
+     */
     @Transactional(readOnly = true)
     @Async("cdcServiceTaskThreadPoolTaskExecutor")
     public Future<Integer> processNextCDCChunk() {
-        CDCProcessingContext context = new CDCProcessingContext(tableOperationPattern, columnTypeValuePattern);
-        try (ScrollableResults scroller = em.createNamedQuery("CDCRecord.peekAll")
-                .setParameter("slot_name", SLOT_NAME)
-                .unwrap(org.hibernate.query.Query.class)
-                .scroll(ScrollMode.FORWARD_ONLY)) {
-            while (scroller.next()) {
-                CDCRecord rawRecord = (CDCRecord) scroller.get()[0];
-                processCDCRecord(context, rawRecord);
+        return new AsyncResult<>(processCDC(true));
+    }
+
+    /**
+     * The same as {@link #processNextCDCChunk()}, but nobody waits to see the changes in search results,
+     * so the index is not asked to refresh.
+     * A failure is not thrown to anybody, add a callback to the result to see it.
+     */
+    @Transactional(readOnly = true)
+    @Async("cdcServiceTaskThreadPoolTaskExecutor")
+    public ListenableFuture<Integer> processNextCDCChunkInBackground() {
+        return new AsyncResult<>(processCDC(false));
+    }
+
+    @Transactional(readOnly = true)
+    public long getCDCRecordCount() {
+        return slotChangesRepository.countChanges(SLOT_NAME);
+    }
+
+    /**
+     * @return the current WAL insert lsn, every transaction committed before the call is before it
+     */
+    public Lsn getCurrentWalLsn() {
+        return slotChangesRepository.getCurrentWalLsn();
+    }
+
+    /**
+     * @return all transactions committed before this lsn are acknowledged by the index, in all tables
+     */
+    public Lsn getAppliedWalLsn() {
+        return appliedWalLsn;
+    }
+
+    /**
+     * @return all transactions committed before this lsn are visible in search results
+     * of the indices from {@code cdc.sink.refresh-indices}. It is behind {@link #getAppliedWalLsn()}
+     * after background calls, which do not refresh.
+     */
+    public Lsn getRefreshedWalLsn() {
+        return refreshedWalLsn;
+    }
+
+    /**
+     * @return bytes of WAL retained by the slot
+     */
+    public long getRetainedWalBytes() {
+        return slotChangesRepository.getRetainedWalBytes(SLOT_NAME);
+    }
+
+    /**
+     * Write a heartbeat message into WAL. Once it is processed, the slot releases WAL written before it,
+     * even if the changes before it belong to other databases.
+     *
+     * @return lsn of the heartbeat
+     */
+    public Lsn emitHeartbeat() {
+        return slotChangesRepository.emitMessage(HEARTBEAT_PREFIX, Instant.now().toString());
+    }
+
+    private int processCDC(boolean waitForRefresh) {
+        // transactions committed before this lsn, in particular the caller's one, must be processed
+        Lsn targetLsn = slotChangesRepository.getCurrentWalLsn();
+        int txCount = 0;
+        CDCProcessingContext context;
+        int maxChanges;
+        do {
+            // the mode is checked before every chunk, so it is left as soon as the slot catches up
+            boolean catchUp = catchUpMode.update(slotChangesRepository.getRetainedWalBytes(SLOT_NAME));
+            maxChanges = catchUp ? Math.max(maxChangesPerChunk, catchUpMaxChangesPerChunk) : maxChangesPerChunk;
+            // indices are not refreshed in catch-up mode, refresh=wait_for would wait for nothing
+            var event = new CDCEvents.ChunkScan();
+            event.begin();
+            context = processChunk(targetLsn, maxChanges, waitForRefresh && !catchUp);
+            txCount += context.getTxCount();
+            event.end();
+            if (event.shouldCommit()) {
+                event.firstLsn = Objects.isNull(context.getFirstLsn()) ? 0 : context.getFirstLsn().value();
+                event.lastLsn = Objects.isNull(context.getLastLsn()) ? 0 : context.getLastLsn().value();
+                event.records = context.getScannedCDCRecords();
+                event.transactions = context.getTxCount();
+                event.maxChanges = maxChanges;
+                event.catchUp = catchUp;
+                event.waitForRefresh = waitForRefresh;
+                event.commit();
+            }
+        } while (hasMoreChunks(context, maxChanges, targetLsn));
+        if (waitForRefresh) {
+            // the caller's change may be in an earlier chunk or applied by a background call, both do not refresh
+            if (catchUpMode.isActive()) {
+                catchUpMode.refresh();
+                sink.markRefreshed();
+            } else {
+                sink.refreshTouched();
             }
         }
+        // the last chunk ends either at the end of the slot or after targetLsn
+        appliedWalLsn = Lsn.max(appliedWalLsn, targetLsn);
+        if (waitForRefresh) {
+            refreshedWalLsn = Lsn.max(refreshedWalLsn, targetLsn);
+        }
+        return txCount;
+    }
+
+    private boolean hasMoreChunks(CDCProcessingContext context, int maxChanges, Lsn targetLsn) {
+        return context.getScannedCDCRecords() >= maxChanges && context.getLastLsn().isBefore(targetLsn);
+    }
+
+    private CDCProcessingContext processChunk(Lsn targetLsn, int maxChanges, boolean waitForRefresh) {
+        CDCProcessingContext context = new CDCProcessingContext();
+        processor.begin();
+        // records are parsed in parallel and applied in lsn order on this thread
+        try (var parseSession = parseStage.open(parser, parsed -> processCDCRecord(context, parsed))) {
+            slotChangesRepository.peekChanges(SLOT_NAME, null, maxChanges, parseSession);
+            parseSession.finish();
+        }
         context.requireNoOpenTransaction();
         int txCount = context.getTxCount();
         log.debug("Found {} transactions, the last lsn= {}.", txCount, context.getLastLsn());
+        // a chunk of heartbeats only has no transactions, but it is cleaned up
+        if (Objects.isNull(context.getLastLsn())) {
+            return context;
+        }
+        // WAL may be cleaned only after the index acknowledges all the scanned transactions.
+        // Only the last chunk waits for refresh.
+        processor.awaitApplied(context.getLastLsn(), waitForRefresh && !hasMoreChunks(context, maxChanges, targetLsn));
         // remove processed records from WAL
         long cleanedCDCRecords = removeProcessedCDC(context);
         if (context.getScannedCDCRecords() != cleanedCDCRecords) {
@@ -93,108 +240,44 @@ public class TestDecodingCDCService {
                     "Something goes wrong. Scanned records (%d) <> cleaned records (%d)"
                             .formatted(context.getScannedCDCRecords(), cleanedCDCRecords));
         }
-        return new AsyncResult<>(txCount);
-    }
-
-    @Transactional(readOnly = true)
-    public long getCDCRecordCount() {
-        return em.createNamedQuery("CDCRecord.peekAll", CDCRecord.class)
-                .setParameter("slot_name", SLOT_NAME)
-                .getResultStream().count();
+        return context;
     }
 
     /**
-     * The record's format depends on using output plugin
+     * Check the transaction boundaries and pass the operations to the processor.
      *
      * @param context
-     * @param record
+     * @param record  - a parsed record
      */
-    private void processCDCRecord(CDCProcessingContext context, CDCRecord record) {
-        String data = record.getData();
-        if (data.startsWith("BEGIN ")) {
-            // begin transaction record
-            String xid = data.substring("BEGIN ".length());
-            if (!xid.equals(record.getXid())) {
-                throw new IllegalStateException("cdc.xid [%s] <> xid from BEGIN [%s]".formatted(xid, record.getXid()));
+    private void processCDCRecord(CDCProcessingContext context, ParsedCDCRecord record) {
+        if (Objects.isNull(context.getFirstLsn())) {
+            context.setFirstLsn(record.lsn());
+        }
+        switch (record.kind()) {
+            case BEGIN -> {
+                context.openTransaction(record.xid());
+                transactionEvent = new CDCEvents.TransactionApply();
+                transactionEvent.begin();
+                transactionEvent.xid = record.xid();
+                transactionEvent.beginLsn = record.lsn().value();
             }
-            context.openTransaction(xid);
-        } else if (data.startsWith("COMMIT ")) {
-            // commit transaction record
-            String xid = data.substring("COMMIT ".length());
-            if (!xid.equals(record.getXid())) {
-                throw new IllegalStateException("cdc.xid [%s] <> xid from COMMIT [%s]".formatted(xid, record.getXid()));
+            case COMMIT -> {
+                latencyRecorder.onCommit(record.xid(), record.lsn(), record.commitTime(), context.getTransactionTables());
+                context.closeTransaction(record.xid(), record.lsn());
+                processor.commit(record.lsn());
+                transactionEvent.commitLsn = record.lsn().value();
+                transactionEvent.commit();
             }
-            context.closeTransaction(xid, record.getLsn());
-        } else if (data.startsWith("table ")) {
-            // an operation (INSERT,UPDATE,DELETE) of current transaction record
-            TransactionOperation op = parseCDCDataColumn(context, data);
-            context.addOperation(record.getXid(), op);
-            processor.processOp(op); // upload  WAL data into ELK
-        } else {
-            throw new IllegalStateException("Unexpected CDCRecord format [" + record + "]");
-        }
-    }
-
-    /**
-     * Parse the data column of CDC record.
-     * The format depends on using output plugin
-     *
-     * @param context - processing context
-     * @param data    - the data field of CDC record
-     * @return transaction operation
-     */
-    private TransactionOperation parseCDCDataColumn(CDCProcessingContext context, String data) {
-        /*
-         * parse a table name and an operation
-         */
-        Matcher matcher = context.getTableOperationMatcher().reset(data);
-        if (!matcher.find()) {
-            throw new IllegalArgumentException("Could not find the table name or the operation. data [" + data + "]");
-        }
-        String tableName = matcher.group("table");
-        tableName = tableName.substring(tableName.indexOf('.') + 1);
-        TransactionOperation.OperationType operationType;
-        /*
-         * parse operation
-         */
-        try {
-            operationType = TransactionOperation.OperationType.valueOf(matcher.group("operation"));
-        } catch (IllegalArgumentException ex) {
-            throw new IllegalStateException("Unknown operation [" + matcher.group("operation") + "]. data [" + data + "]");
-        }
-        /*
-         * parse columns and values
-         */
-        matcher = context.getColumnTypeValueMatcher().reset(data.subSequence(matcher.end(), data.length()));
-        Map<String, String> columnValueMap = new LinkedHashMap<>();
-        StringBuilder sb = new StringBuilder("select ");
-        while (matcher.find()) {
-            String column = matcher.group("column");
-            String value = matcher.group("value");
-            sb.append(value).append(" as ").append(column).append(COLUMN_DELIM);
-            if ('\'' == value.charAt(0)) {
-                value = value.substring(1, value.length() - 1);
+            case CHANGE -> {
+                context.addOperations(record.xid(), record.operations());
+                transactionEvent.operations += record.operations().size();
+                record.operations().forEach(processor::processOp); // upload  WAL data into ELK
+            }
+            case MESSAGE -> {
+                // the watermark of the sink moves to a heartbeat as to a commit
+                if (context.addMessage(record.lsn())) processor.commit(record.lsn());
             }
-            columnValueMap.put(column, value);
-            log.debug("tx=[{}], table=[{}] column=[{}], type=[{}] value=[{}]", context.getXid(), tableName, column, matcher.group("type"), value);
-        }
-        if (!matcher.hitEnd()) {
-            throw new IllegalStateException("Unexpected tail. data [" + data + "]");
-        }
-        /*
-         * Add columns that are not presented in the record.
-         * For instance, only primary keys are presented in DELETE operation.
-         * Value for added columns is NULL.
-         */
-        long count = processor.getNonIdColumns(tableName).stream()
-                .filter(x -> !columnValueMap.containsKey(x))
-                .peek(column -> sb.append("NULL").append(" as ").append(column).append(COLUMN_DELIM))
-                .count();
-        // remove the last delimiter from the restore SQL statement string.
-        if (!columnValueMap.isEmpty() || count > 0) {
-            sb.delete(sb.length() - COLUMN_DELIM.length(), sb.length());
         }
-        return new TransactionOperation(operationType, tableName, columnValueMap, sb.toString());
     }
 
     private long removeProcessedCDC(CDCProcessingContext context) {
@@ -202,10 +285,13 @@ public class TestDecodingCDCService {
          * get CDC records created before context.getLastLsn().
          * These are exactly the records that were processed during the current call of processNextCDCChunk().
          */
-        return em.createNamedQuery("CDCRecord.getProcessed", CDCRecord.class)
-                .setParameter("slot_name", SLOT_NAME)
-                .setParameter("last_lsn", context.getLastLsn())
-                .getResultStream().count();
+        var event = new CDCEvents.SlotCleanup();
+        event.begin();
+        long res = slotChangesRepository.consumeChanges(SLOT_NAME, context.getLastLsn());
+        event.uptoLsn = context.getLastLsn().value();
+        event.records = res;
+        event.commit();
+        return res;
     }
 
     ;
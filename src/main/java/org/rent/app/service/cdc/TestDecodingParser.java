@@ -0,0 +1,272 @@
+package org.rent.app.service.cdc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.rent.app.domain.cdc.CDCRecord;
+import org.rent.app.domain.cdc.Lsn;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * TestDecodingParser
+ * <p>
+ * Parses the data column of CDC records produced by {@code test_decoding} output plugin.
+ * The parser does not keep state between batches, so batches may be parsed by different threads at the same time.
+ * Pairing of BEGIN/COMMIT records is checked later by {@link CDCProcessingContext}.
+ * </p>
+ */
+@Slf4j
+public class TestDecodingParser {
+    private static final Pattern columnTypeValuePattern = Pattern.compile(
+            "(?<column>[^\\[]+)\\[(?<type>[^]]+)]:(?<value>'(?:[^']|'')*'|[^']\\S*)[\\s]?");
+    private static final Pattern tableOperationPattern = Pattern.compile(
+            "table\s(?<table>[^:]+):\s(?<operation>[^:]+):\s");
+    private static final String COLUMN_DELIM = ", ";
+    private static final String BEGIN = "BEGIN ";
+    private static final String COMMIT = "COMMIT ";
+    private static final String TABLE = "table ";
+    /*
+     * message: transactional: 0 prefix: elk_heartbeat, sz: 20 content:...
+     */
+    private static final String MESSAGE = "message: ";
+    private static final String OLD_KEY = "old-key: ";
+    private static final String NEW_TUPLE = "new-tuple: ";
+    private static final String NULL_VALUE = "null"; // unquoted null is SQL NULL
+    /*
+     * COMMIT 1234 (at 2022-07-18 10:11:12.123456+03)
+     */
+    private static final String COMMIT_TIME_PREFIX = " (at ";
+    private static final DateTimeFormatter COMMIT_TIME_FORMAT = new DateTimeFormatterBuilder()
+            .append(DateTimeFormatter.ISO_LOCAL_DATE)
+            .appendLiteral(' ')
+            .append(DateTimeFormatter.ISO_LOCAL_TIME)
+            .appendOffset("+HH:mm", "Z")
+            .toFormatter();
+
+    private final Predicate<String> requiresRestore;
+    private final Function<String, List<String>> nonIdColumns;
+
+    /**
+     * @param requiresRestore - is the restore SQL statement built for the table
+     * @param nonIdColumns    - no pk columns of the table, they are added to the restore SQL statement
+     */
+    public TestDecodingParser(Predicate<String> requiresRestore, Function<String, List<String>> nonIdColumns) {
+        this.requiresRestore = requiresRestore;
+        this.nonIdColumns = nonIdColumns;
+    }
+
+    /**
+     * Parse a batch of CDC records.
+     *
+     * @return parsed records in the order of the batch
+     */
+    public List<ParsedCDCRecord> parse(List<CDCRecord> records) {
+        var event = new CDCEvents.ParseBatch();
+        event.begin();
+        // matchers are not thread safe, they are reused within the batch only
+        Matcher tableOperationMatcher = tableOperationPattern.matcher("");
+        Matcher columnTypeValueMatcher = columnTypeValuePattern.matcher("");
+        List<ParsedCDCRecord> res = new ArrayList<>(records.size());
+        for (CDCRecord record : records) {
+            res.add(parse(record, tableOperationMatcher, columnTypeValueMatcher));
+        }
+        event.end();
+        if (event.shouldCommit() && !records.isEmpty()) {
+            event.firstLsn = records.get(0).getLsn();
+            event.lastLsn = records.get(records.size() - 1).getLsn();
+            event.records = records.size();
+            for (int idx = 0; idx < records.size(); idx++) {
+                event.dataBytes += records.get(idx).getData().length();
+                event.operations += res.get(idx).operations().size();
+            }
+            event.commit();
+        }
+        return res;
+    }
+
+    /**
+     * The record's format depends on using output plugin
+     */
+    private ParsedCDCRecord parse(CDCRecord record, Matcher tableOperationMatcher, Matcher columnTypeValueMatcher) {
+        String data = record.getData();
+        Lsn lsn = Lsn.of(record.getLsn());
+        if (data.startsWith(BEGIN)) {
+            // begin transaction record
+            long xid = parseXid(data, BEGIN.length());
+            if (xid != record.getXid()) {
+                throw new IllegalStateException("cdc.xid [%d] <> xid from BEGIN [%d]".formatted(record.getXid(), xid));
+            }
+            return new ParsedCDCRecord(ParsedCDCRecord.Kind.BEGIN, xid, lsn, null, List.of());
+        } else if (data.startsWith(COMMIT)) {
+            // commit transaction record
+            long xid = parseXid(data, COMMIT.length());
+            if (xid != record.getXid()) {
+                throw new IllegalStateException("cdc.xid [%d] <> xid from COMMIT [%d]".formatted(record.getXid(), xid));
+            }
+            return new ParsedCDCRecord(ParsedCDCRecord.Kind.COMMIT, xid, lsn, parseCommitTime(data), List.of());
+        } else if (data.startsWith(TABLE)) {
+            // an operation (INSERT,UPDATE,DELETE,TRUNCATE) of current transaction record
+            return new ParsedCDCRecord(ParsedCDCRecord.Kind.CHANGE, record.getXid(), lsn, null,
+                    parseCDCDataColumn(record.getXid(), lsn, data, tableOperationMatcher, columnTypeValueMatcher));
+        } else if (data.startsWith(MESSAGE)) {
+            // a logical decoding message, its content is not used
+            return new ParsedCDCRecord(ParsedCDCRecord.Kind.MESSAGE, record.getXid(), lsn, null, List.of());
+        }
+        throw new IllegalStateException("Unexpected CDCRecord format [" + record + "]");
+    }
+
+    /**
+     * Parse the data column of CDC record.
+     * The format depends on using output plugin
+     *
+     * @param xid  - the xid field of CDC record
+     * @param lsn  - the lsn field of CDC record
+     * @param data - the data field of CDC record
+     * @return transaction operations. TRUNCATE record produces an operation per truncated table
+     */
+    private List<TransactionOperation> parseCDCDataColumn(long xid, Lsn lsn, String data,
+                                                          Matcher tableOperationMatcher, Matcher columnTypeValueMatcher) {
+        /*
+         * parse a table name and an operation
+         */
+        Matcher matcher = tableOperationMatcher.reset(data);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("Could not find the table name or the operation. data [" + data + "]");
+        }
+        String tableName = matcher.group("table");
+        tableName = tableName.substring(tableName.indexOf('.') + 1);
+        TransactionOperation.OperationType operationType;
+        /*
+         * parse operation
+         */
+        try {
+            operationType = TransactionOperation.OperationType.valueOf(matcher.group("operation"));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalStateException("Unknown operation [" + matcher.group("operation") + "]. data [" + data + "]");
+        }
+        if (operationType == TransactionOperation.OperationType.TRUNCATE) {
+            // table public.a, public.b: TRUNCATE: (no-flags)
+            return Arrays.stream(matcher.group("table").split(COLUMN_DELIM))
+                    .map(table -> new TransactionOperation(lsn, operationType, table.substring(table.indexOf('.') + 1), Map.of(), null, null))
+                    .toList();
+        }
+        int from = matcher.end();
+        /*
+         * UPDATE of a table with REPLICA IDENTITY FULL: old-key: <old values> new-tuple: <new values>
+         */
+        Map<String, String> oldColumnValueMap = null;
+        if (data.startsWith(OLD_KEY, from)) {
+            oldColumnValueMap = new LinkedHashMap<>();
+            from = parseOldColumns(data, from + OLD_KEY.length(), oldColumnValueMap, columnTypeValueMatcher);
+        }
+        /*
+         * parse columns and values
+         */
+        matcher = columnTypeValueMatcher.reset(data.subSequence(from, data.length()));
+        Map<String, String> columnValueMap = new LinkedHashMap<>();
+        // the restore SQL statement is built only for tables without a document writer
+        StringBuilder sb = requiresRestore.test(tableName) ? new StringBuilder("select ") : null;
+        while (matcher.find()) {
+            String column = matcher.group("column");
+            String value = matcher.group("value");
+            if (Objects.nonNull(sb)) {
+                sb.append(value).append(" as ").append(column).append(COLUMN_DELIM);
+            }
+            value = unquote(value);
+            columnValueMap.put(column, value);
+        }
+        if (!matcher.hitEnd()) {
+            throw new IllegalStateException("Unexpected tail. data [" + data + "]");
+        }
+        if (Objects.isNull(sb)) {
+            return List.of(new TransactionOperation(lsn, operationType, tableName, columnValueMap, oldColumnValueMap, null));
+        }
+        /*
+         * Add columns that are not presented in the record.
+         * For instance, only primary keys are presented in DELETE operation.
+         * Value for added columns is NULL.
+         */
+        long count = nonIdColumns.apply(tableName).stream()
+                .filter(x -> !columnValueMap.containsKey(x))
+                .peek(column -> sb.append("NULL").append(" as ").append(column).append(COLUMN_DELIM))
+                .count();
+        // remove the last delimiter from the restore SQL statement string.
+        if (!columnValueMap.isEmpty() || count > 0) {
+            sb.delete(sb.length() - COLUMN_DELIM.length(), sb.length());
+        }
+        return List.of(new TransactionOperation(lsn, operationType, tableName, columnValueMap, oldColumnValueMap, sb.toString()));
+    }
+
+    /**
+     * Parse old values up to {@code new-tuple:}.
+     *
+     * @return the position of new values
+     */
+    private static int parseOldColumns(String data, int from, Map<String, String> columnValueMap, Matcher matcher) {
+        matcher.reset(data);
+        while (!data.startsWith(NEW_TUPLE, from)) {
+            if (!matcher.region(from, data.length()).lookingAt()) {
+                throw new IllegalStateException("Could not find new-tuple. data [" + data + "]");
+            }
+            columnValueMap.put(matcher.group("column"), unquote(matcher.group("value")));
+            from = matcher.end();
+        }
+        return from + NEW_TUPLE.length();
+    }
+
+    private static String unquote(String value) {
+        if ('\'' == value.charAt(0)) {
+            value = value.substring(1, value.length() - 1);
+            if (value.indexOf('\'') >= 0) {
+                value = value.replace("''", "'");
+            }
+            return value;
+        }
+        return NULL_VALUE.equals(value) ? null : value;
+    }
+
+    /**
+     * Parse xid from BEGIN/COMMIT record without creating substrings.
+     * The xid may be followed by other information, e.g. commit timestamp.
+     */
+    private static long parseXid(String data, int from) {
+        int to = from;
+        while (to < data.length() && Character.isDigit(data.charAt(to))) to++;
+        if (to == from) {
+            throw new IllegalStateException("Could not find xid. data [" + data + "]");
+        }
+        return Long.parseLong(data, from, to, 10);
+    }
+
+    /**
+     * Parse the commit timestamp of COMMIT record.
+     *
+     * @return the commit timestamp or null if the record does not contain it
+     */
+    private static Instant parseCommitTime(String data) {
+        int from = data.indexOf(COMMIT_TIME_PREFIX, COMMIT.length());
+        if (from < 0 || data.charAt(data.length() - 1) != ')') {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(data.subSequence(from + COMMIT_TIME_PREFIX.length(), data.length() - 1), COMMIT_TIME_FORMAT)
+                    .toInstant();
+        } catch (DateTimeParseException ex) {
+            log.warn("Could not parse commit timestamp. data [{}]", data);
+            return null;
+        }
+    }
+}
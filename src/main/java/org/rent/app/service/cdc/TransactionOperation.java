@@ -1,6 +1,7 @@
 package org.rent.app.service.cdc;
 
 import lombok.Data;
+import org.rent.app.domain.cdc.Lsn;
 
 import java.util.List;
 import java.util.Map;
@@ -17,11 +18,20 @@ import java.util.Map;
  */
 @Data
 public class TransactionOperation {
-    public enum OperationType {INSERT, UPDATE, DELETE}
+    public enum OperationType {INSERT, UPDATE, DELETE, TRUNCATE}
 
+    /*
+     * lsn of the CDC record. It is used as the external version of the document.
+     */
+    private final Lsn lsn;
     private final OperationType operationType;
     private final String tableName;
     private final Map<String, String> columnValues;
+    /*
+     * values of the row before UPDATE. null if WAL does not contain them,
+     * they are logged for tables with REPLICA IDENTITY FULL.
+     */
+    private final Map<String, String> oldColumnValues;
     /*
      * this statement is used for restoring JPA entity from column/values pairs.
      */
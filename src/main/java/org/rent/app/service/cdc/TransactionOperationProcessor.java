@@ -4,9 +4,12 @@ import lombok.extern.slf4j.Slf4j;
 import org.hibernate.metamodel.internal.MetamodelImpl;
 import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.rent.app.domain.cdc.Lsn;
 import org.rent.app.service.UncheckedEntityService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.document.Document;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
@@ -14,7 +17,6 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceUnit;
-import javax.persistence.metamodel.EntityType;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -42,7 +44,7 @@ public class TransactionOperationProcessor {
     record JPAEntityInfo(
             String tableName, // table name of a JPA entity
             Class<?> entityClazz, // java class of an entity
-            SingleTableEntityPersister entityPersister, // It is not used at the moment
+            SingleTableEntityPersister entityPersister, // It is used to bind columns to properties
             List<String> ids, // pk columns
             List<String> nonIds // no pk columns
     ) {
@@ -54,6 +56,22 @@ public class TransactionOperationProcessor {
     private EntityManagerFactory emf;
     @Autowired
     private Collection<UncheckedEntityService<?>> elasticsearchServices;
+    @Autowired
+    private ElasticsearchBulkSink sink;
+    @Autowired
+    private ElasticsearchOperations operations;
+    @Autowired
+    private AppliedDocumentRegistry appliedDocuments;
+    @Autowired
+    private IndexSwapService indexSwapService;
+    @Autowired
+    private AggregateProjectionService aggregateProjections;
+    @Autowired
+    private SearchCacheInvalidator searchCacheInvalidator;
+    @Autowired
+    private AppliedLsnIndex appliedLsns;
+    @Autowired
+    private EnrichmentService enrichments;
     /*
      *  contains JPA info hashed by table name
      */
@@ -62,18 +80,28 @@ public class TransactionOperationProcessor {
      *  contains ELK services hashed by the JPA entity class
      */
     private Map<Class<?>, UncheckedEntityService<?>> elasticsearchServiceByJPAClass;
+    /*
+     *  contains compiled document writers hashed by table name.
+     *  Operations on these tables are written into the index without restoring JPA entities.
+     */
+    private Map<String, NdjsonDocumentWriter> documentWriterByTableName;
 
     @PostConstruct
     private void init() {
         /*
-         * build jpaEntityInfoByTableName
+         * build jpaEntityInfoByTableName and elasticsearchServiceByJPAClass.
+         * Only entities with ELK service are looked up in the metamodel, other entities are not inspected.
          */
         jpaEntityInfoByTableName = new HashMap<>();
-        Set<Class<?>> jpaEntityClazzes = new HashSet<>();
+        elasticsearchServiceByJPAClass = new HashMap<>();
         MetamodelImpl metamodel = (MetamodelImpl) emf.getMetamodel();
-        for (EntityType<?> entityType : metamodel.getEntities()) {
-            Class<?> entityClazz = entityType.getJavaType();
-            EntityPersister generalEntityPersister = metamodel.entityPersister(entityClazz);
+        for (UncheckedEntityService<?> elkService : elasticsearchServices) {
+            Class<?> entityClazz = elkService.getEntityClass();
+            EntityPersister generalEntityPersister = metamodel.entityPersisters().get(entityClazz.getName());
+            if (Objects.isNull(generalEntityPersister)) {
+                log.warn("Skip {} as there is no entityInfo for it.", entityClazz);
+                continue;
+            }
             /*
              * below we use specific Hibernate JPA implementation internals
              * as JPA specs does not specify such features
@@ -85,36 +113,110 @@ public class TransactionOperationProcessor {
                         Collections.unmodifiableList(Arrays.asList(entityPersister.getIdentifierColumnNames())),
                         getNonIdColumns(entityPersister));
                 jpaEntityInfoByTableName.put(entityInfo.tableName(), entityInfo);
-                jpaEntityClazzes.add(entityClazz);
+                elasticsearchServiceByJPAClass.put(entityClazz, elkService);
+                // the index of a service without a document class is not known, its map is not checked
+                Class<?> documentClazz = elkService.getDocumentClass();
+                appliedLsns.register(entityInfo.tableName(), entityPersister.getIdentifierType().getReturnedClass(),
+                        Objects.isNull(documentClazz) ? null : indexSwapService.getIndexUuid(documentClazz));
             } else {
                 log.warn("{} does not map to a single table. Skip it.", entityClazz);
             }
         }
         /*
-         *  build elasticsearchServiceByJPAClass
+         *  compile document writers for ELK services with a document class.
+         *  Enriched properties are looked up in the caches of reference tables.
          */
-        elasticsearchServiceByJPAClass = new HashMap<>();
-        elasticsearchServices.forEach(e -> {
-            Class<?> clazz = e.getEntityClass();
-            if (jpaEntityClazzes.contains(clazz)) {
-                elasticsearchServiceByJPAClass.put(clazz, e);
-            } else {
-                log.warn("Skip {} as there is no entityInfo for it.", clazz);
+        documentWriterByTableName = new HashMap<>();
+        jpaEntityInfoByTableName.forEach((tableName, entityInfo) -> {
+            var elkService = findElasticsearchService(entityInfo.entityClazz());
+            Class<?> documentClazz = elkService.getDocumentClass();
+            if (Objects.isNull(documentClazz) && !elkService.getEnrichments().isEmpty()) {
+                throw new IllegalStateException("Enrichments of table %s require a document class".formatted(tableName));
+            }
+            if (Objects.isNull(documentClazz) && Objects.nonNull(elkService.getRoutingProperty())) {
+                throw new IllegalStateException("Routing of table %s requires a document class".formatted(tableName));
+            }
+            if (Objects.nonNull(documentClazz)) {
+                try {
+                    var documentEntity = operations.getElasticsearchConverter().getMappingContext()
+                            .getRequiredPersistentEntity(documentClazz);
+                    var columnByProperty = getColumnByProperty(entityInfo.entityPersister());
+                    documentWriterByTableName.put(tableName, NdjsonDocumentWriter.compile(documentEntity, columnByProperty,
+                            enrichments.register(documentClazz, elkService.getEnrichments(), columnByProperty),
+                            elkService.getRoutingProperty()));
+                } catch (IllegalArgumentException ex) {
+                    if (Objects.nonNull(elkService.getRoutingProperty())) {
+                        // restored JPA entities are indexed by the ELK service without routing
+                        throw new IllegalStateException("Routing of table %s requires a document writer".formatted(tableName), ex);
+                    }
+                    log.warn("Could not compile document writer for {}. JPA entities will be restored. {}", documentClazz, ex.getMessage());
+                }
             }
         });
         /*
-         *  skip JPA entities without ELK service
+         *  register aggregate projections
          */
-        Set<Class<?>> elkEntityClazzes = elasticsearchServiceByJPAClass.keySet();
-        jpaEntityClazzes.removeAll(elkEntityClazzes);
-        if (!jpaEntityClazzes.isEmpty()) {
-            log.warn("Classes do not have elk service and will be remove from processing: {}", jpaEntityClazzes);
-            jpaEntityInfoByTableName.values().removeIf(i -> jpaEntityClazzes.contains(i.entityClazz()));
-        }
+        jpaEntityInfoByTableName.forEach((tableName, entityInfo) -> {
+            var elkService = findElasticsearchService(entityInfo.entityClazz());
+            if (elkService.getProjections().isEmpty()) {
+                return;
+            }
+            if (Objects.isNull(elkService.getDocumentClass())) {
+                throw new IllegalStateException("Projections of table %s require a document class".formatted(tableName));
+            }
+            aggregateProjections.register(tableName, elkService.getDocumentClass(), elkService.getProjections(),
+                    getColumnByProperty(entityInfo.entityPersister()));
+        });
+        /*
+         *  register properties that tag cached search results
+         */
+        jpaEntityInfoByTableName.forEach((tableName, entityInfo) -> {
+            var elkService = findElasticsearchService(entityInfo.entityClazz());
+            if (elkService.getCacheTagProperties().isEmpty()) {
+                return;
+            }
+            if (Objects.isNull(elkService.getDocumentClass())) {
+                throw new IllegalStateException("Cache tags of table %s require a document class".formatted(tableName));
+            }
+            var columnByProperty = getColumnByProperty(entityInfo.entityPersister());
+            Map<String, String> tagColumns = new HashMap<>();
+            elkService.getCacheTagProperties().forEach(property -> tagColumns.put(property,
+                    Objects.requireNonNull(columnByProperty.get(property), property)));
+            searchCacheInvalidator.register(tableName, elkService.getDocumentClass(), tagColumns);
+        });
         log.debug("Supported entities:");
         jpaEntityInfoByTableName.forEach((k, v) -> log.debug("table [{}] class[{}]", k, v.entityClazz()));
     }
 
+    /**
+     * @return ELK document classes declared by ELK services
+     */
+    public Set<Class<?>> getDocumentClasses() {
+        Set<Class<?>> res = new HashSet<>();
+        elasticsearchServiceByJPAClass.values().forEach(e -> {
+            if (Objects.nonNull(e.getDocumentClass())) res.add(e.getDocumentClass());
+        });
+        return res;
+    }
+
+    /**
+     * @return the table whose rows are written as documents of the class or null
+     */
+    public String getTableName(Class<?> documentClass) {
+        return jpaEntityInfoByTableName.entrySet().stream()
+                .filter(e -> documentClass.equals(findElasticsearchService(e.getValue().entityClazz()).getDocumentClass()))
+                .map(Map.Entry::getKey)
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * @return true if operations on the table are processed by restoring JPA entities with restore SQL statement
+     */
+    public boolean requiresRestore(String tableName) {
+        return jpaEntityInfoByTableName.containsKey(tableName) && !documentWriterByTableName.containsKey(tableName);
+    }
+
     public List<String> getNonIdColumns(String tableName) {
         var entityInfo = jpaEntityInfoByTableName.get(tableName);
         return Objects.nonNull(entityInfo) ? entityInfo.nonIds() : Collections.emptyList();
@@ -130,6 +232,36 @@ public class TransactionOperationProcessor {
         String tableName = op.getTableName();
         // try to find jpaEntityInfo by the table name
         var jpaEntityInfo = jpaEntityInfoByTableName.get(tableName);
+        searchCacheInvalidator.collect(op);
+        enrichments.apply(op);
+        if (op.getOperationType() == TransactionOperation.OperationType.TRUNCATE) {
+            truncate(op, jpaEntityInfo);
+            return;
+        }
+        if (Objects.nonNull(jpaEntityInfo) && appliedLsns.isStale(tableName, getId(jpaEntityInfo, op), op.getLsn().value())) {
+            log.debug("skip stale TransactionOperation {} {} at {}", tableName, getId(jpaEntityInfo, op), op.getLsn());
+            return;
+        }
+        aggregateProjections.apply(op);
+        // write the document straight from column values
+        var documentWriter = documentWriterByTableName.get(tableName);
+        if (Objects.nonNull(documentWriter)) {
+            long version = op.getLsn().value();
+            switch (op.getOperationType()) {
+                case INSERT -> sink.index(documentWriter, op.getColumnValues(), version);
+                case UPDATE -> {
+                    if (documentWriter.isRouted()) {
+                        deleteFromOldRoute(documentWriter, op, version);
+                    }
+                    sink.index(documentWriter, op.getColumnValues(), version);
+                }
+                case DELETE -> sink.delete(documentWriter, op.getColumnValues(), version);
+                default -> throw new IllegalArgumentException(op.getOperationType().toString());
+            }
+            appliedLsns.applied(tableName, getId(jpaEntityInfo, op), version);
+            publishApplied(jpaEntityInfo.entityClazz(), documentWriter, op);
+            return;
+        }
         if (Objects.nonNull(jpaEntityInfo)) {
             // get JPA entity class
             Class<?> entityClazz = jpaEntityInfoByTableName.get(tableName).entityClazz;
@@ -141,15 +273,28 @@ public class TransactionOperationProcessor {
                  * only that part of the entity that is persisted in this table is restored.
                  * JPA properties annotated with @OneToOne, @OneToMany, etc. are not initialized.
                  */
+                var event = new CDCEvents.Restore();
+                event.begin();
                 Object jpaEntity = em.createNativeQuery(op.getRestoreSQLStatement(), entityClazz).getSingleResult();
+                event.end();
+                if (event.shouldCommit()) {
+                    event.table = tableName;
+                    event.lsn = op.getLsn().value();
+                    event.operation = op.getOperationType().name();
+                    event.commit();
+                }
                 log.debug("Restore JPA entity {}", jpaEntity);
+                // keep the persistence context small during a long WAL scan
+                em.detach(jpaEntity);
                 // synch with ELK
+                long version = op.getLsn().value();
                 switch (op.getOperationType()) {
-                    case INSERT -> elkService.create(jpaEntity);
-                    case UPDATE -> elkService.update(jpaEntity);
-                    case DELETE -> elkService.delete(jpaEntity);
+                    case INSERT -> elkService.create(jpaEntity, version);
+                    case UPDATE -> elkService.update(jpaEntity, version);
+                    case DELETE -> elkService.delete(jpaEntity, version);
                     default -> throw new IllegalArgumentException(op.getOperationType().toString());
                 }
+                appliedLsns.applied(tableName, getId(jpaEntityInfo, op), version);
             } else {
                 log.debug("skip TransactionOperation as there is not elkService for table {} enityClass {} ", op.getTableName(), entityClazz);
             }
@@ -158,6 +303,98 @@ public class TransactionOperationProcessor {
         }
     }
 
+    /*
+     * The index is not cleaned document by document. A new empty index replaces it behind the alias.
+     * The index of a service without a document class is not known. Throwing would stop the pipeline
+     * on the same record after every restart, so the TRUNCATE is skipped and the documents stay in the index.
+     */
+    private void truncate(TransactionOperation op, JPAEntityInfo jpaEntityInfo) {
+        if (Objects.isNull(jpaEntityInfo)) {
+            log.debug("skip TRUNCATE as there is not entityInfo for table {}", op.getTableName());
+            return;
+        }
+        Class<?> documentClazz = findElasticsearchService(jpaEntityInfo.entityClazz()).getDocumentClass();
+        if (Objects.isNull(documentClazz)) {
+            log.error("Skip TRUNCATE of table {} at lsn {}: its UncheckedEntityService has no document class. "
+                    + "The documents of the table stay in the index, delete them manually", op.getTableName(), op.getLsn());
+            appliedLsns.truncate(op.getTableName(), op.getLsn().value(), null);
+            return;
+        }
+        // the actions sent before TRUNCATE must not reach the new index
+        sink.drain();
+        indexSwapService.swap(documentClazz);
+        aggregateProjections.truncate(op.getTableName());
+        appliedLsns.truncate(op.getTableName(), op.getLsn().value(), indexSwapService.getIndexUuid(documentClazz));
+    }
+
+    /*
+     * The routing value of the row is changed, the document is on another shard. Both actions use the lsn as the version,
+     * the versions of different shards are independent.
+     */
+    private void deleteFromOldRoute(NdjsonDocumentWriter documentWriter, TransactionOperation op, long version) {
+        var oldColumnValues = op.getOldColumnValues();
+        if (Objects.isNull(oldColumnValues)) {
+            throw new IllegalStateException("Old values of table %s are not in WAL. Set REPLICA IDENTITY FULL".formatted(op.getTableName()));
+        }
+        if (!Objects.equals(documentWriter.getRouting(oldColumnValues), documentWriter.getRouting(op.getColumnValues()))) {
+            sink.delete(documentWriter, oldColumnValues, version);
+        }
+    }
+
+    /*
+     * Pass the indexed document to a writer waiting for it, so the writer does not read it back from the index.
+     */
+    private void publishApplied(Class<?> entityClazz, NdjsonDocumentWriter documentWriter, TransactionOperation op) {
+        String id = documentWriter.getId(op.getColumnValues());
+        if (appliedDocuments.isWatched(entityClazz, id)) {
+            appliedDocuments.publish(entityClazz, id, op.getLsn(), op.getOperationType(), () -> {
+                BulkBuffer source = new BulkBuffer(256);
+                documentWriter.writeSource(source, op.getColumnValues());
+                return operations.getElasticsearchConverter().read(documentWriter.getDocumentClass(), Document.parse(source.toString()));
+            });
+        }
+    }
+
+    /**
+     * Prepare for a new WAL scan.
+     */
+    public void begin() {
+        sink.reset();
+        aggregateProjections.reset();
+        searchCacheInvalidator.reset();
+        appliedLsns.reset();
+        enrichments.reset();
+    }
+
+    /**
+     * A transaction is committed. Its operations are passed to the sink.
+     *
+     * @param lsn - lsn of the COMMIT record
+     */
+    public void commit(Lsn lsn) {
+        aggregateProjections.commit(lsn);
+        sink.commit(lsn);
+    }
+
+    /**
+     * Wait until the index acknowledges all operations of transactions committed before or at lsn.
+     * Only after that the WAL may be cleaned up to lsn.
+     *
+     * @param lsn            - lsn of the COMMIT record
+     * @param waitForRefresh - the changes must be visible in search results on return
+     */
+    public void awaitApplied(Lsn lsn, boolean waitForRefresh) {
+        aggregateProjections.flush();
+        sink.awaitConfirmed(lsn, waitForRefresh);
+        appliedLsns.commit();
+        enrichments.flush(waitForRefresh);
+        searchCacheInvalidator.flush(waitForRefresh);
+    }
+
+    private static String getId(JPAEntityInfo jpaEntityInfo, TransactionOperation op) {
+        return op.getColumnValues().get(jpaEntityInfo.ids().get(0));
+    }
+
     private UncheckedEntityService<?> findElasticsearchService(Class<?> jpaClass) {
         UncheckedEntityService<?> res = elasticsearchServiceByJPAClass.get(jpaClass);
         if (Objects.isNull(res))
@@ -166,6 +403,16 @@ public class TransactionOperationProcessor {
         return res;
     }
 
+    private Map<String, String> getColumnByProperty(SingleTableEntityPersister entityPersister) {
+        Map<String, String> res = new HashMap<>();
+        res.put(entityPersister.getIdentifierPropertyName(), entityPersister.getIdentifierColumnNames()[0]);
+        String[] propertyNames = entityPersister.getPropertyNames();
+        for (int idx = 0; idx < propertyNames.length; idx++) {
+            res.put(propertyNames[idx], entityPersister.getPropertyColumnNames(idx)[0]);
+        }
+        return res;
+    }
+
     private List<String> getNonIdColumns(SingleTableEntityPersister entityPersister) {
         return IntStream.range(0, entityPersister.getEntityMetamodel().getPropertySpan())
                 .mapToObj(idx -> entityPersister.getPropertyColumnNames(idx)[0]).toList();
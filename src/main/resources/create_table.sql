@@ -10,3 +10,19 @@ CREATE TABLE product (
 	updated timestamp NOT NULL DEFAULT now(),
 	CONSTRAINT product_pk PRIMARY KEY (id)
 );
+-- aggregate projections and category routing need the old values of changed rows in WAL
+ALTER TABLE product REPLICA IDENTITY FULL;
+
+-- reference tables, their values are denormalized into the product index
+DROP TABLE IF EXISTS category CASCADE;
+CREATE TABLE category (
+	id integer NOT NULL,
+	"name" varchar NOT NULL,
+	CONSTRAINT category_pk PRIMARY KEY (id)
+);
+DROP TABLE IF EXISTS "owner" CASCADE;
+CREATE TABLE "owner" (
+	id integer NOT NULL,
+	display_name varchar NOT NULL,
+	CONSTRAINT owner_pk PRIMARY KEY (id)
+);
@@ -0,0 +1,69 @@
+package org.rent.app.controller;
+
+import org.junit.jupiter.api.Test;
+import org.rent.app.domain.cdc.Lsn;
+import org.rent.app.dto.ProductDto;
+import org.rent.app.service.AggregateSummary;
+import org.rent.app.service.ProductReadService;
+import org.rent.app.service.cdc.AggregateProjectionService;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.Map;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class ProductControllerTests {
+    private final ProductReadService readService = mock(ProductReadService.class);
+    private final AggregateProjectionService projectionService = mock(AggregateProjectionService.class);
+    private final MockMvc mvc;
+
+    public ProductControllerTests() {
+        var controller = new ProductController();
+        ReflectionTestUtils.setField(controller, "readService", readService);
+        ReflectionTestUtils.setField(controller, "projectionService", projectionService);
+        mvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @Test
+    public void readWithToken() throws Exception {
+        when(readService.findById(eq(7L), eq(Lsn.parse("16/B374D848")))).thenReturn(Optional.of(ProductDto.builder().id(7L).build()));
+        mvc.perform(get("/product/7").header(ProductController.MIN_LSN_HEADER, "16/B374D848"))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void malformedTokenIsBadRequest() throws Exception {
+        when(readService.findById(any(), any())).thenReturn(Optional.empty());
+        mvc.perform(get("/product/7").header(ProductController.MIN_LSN_HEADER, "16B374D848"))
+                .andExpect(status().isBadRequest());
+        mvc.perform(get("/product/7").header(ProductController.MIN_LSN_HEADER, "16/XYZ"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void summaryIsReadThroughProjections() throws Exception {
+        when(projectionService.getSummary("product_by_category", "2")).thenReturn(Optional.of(new AggregateSummary(
+                "product_by_category", "2", 3, Map.of("price", new AggregateSummary.Metric(2, 30.0, 10.0, 20.0)))));
+        mvc.perform(get("/product/summary/product_by_category/2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(3))
+                .andExpect(jsonPath("$.metrics.price.min").value(10.0))
+                .andExpect(jsonPath("$.metrics.price.avg").value(15.0));
+
+        when(projectionService.getSummary("product_by_category", "5")).thenReturn(Optional.empty());
+        mvc.perform(get("/product/summary/product_by_category/5"))
+                .andExpect(status().isNotFound());
+        when(projectionService.getSummary(eq("product_by_color"), any())).thenThrow(new IllegalArgumentException("Unknown projection product_by_color"));
+        mvc.perform(get("/product/summary/product_by_color/5"))
+                .andExpect(status().isNotFound());
+    }
+}
@@ -0,0 +1,36 @@
+package org.rent.app.domain.cdc;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LsnTests {
+    @Test
+    public void parseAndFormat() {
+        Lsn lsn = Lsn.parse("16/B374D848");
+        assertEquals(0x16B374D848L, lsn.value());
+        assertEquals("16/B374D848", lsn.toString());
+        assertEquals("0/0", Lsn.ZERO.toString());
+        assertEquals("FFFFFFFF/FFFFFFFF", Lsn.of(-1L).toString());
+    }
+
+    @Test
+    public void ordering() {
+        Lsn a = Lsn.parse("0/FFFFFFFF");
+        Lsn b = Lsn.parse("1/0");
+        assertTrue(b.isAfter(a));
+        assertTrue(a.isBefore(b));
+        assertEquals(1L, b.bytesFrom(a));
+        assertEquals(b, Lsn.max(a, b));
+        // lsn is unsigned
+        assertTrue(Lsn.of(-1L).isAfter(b));
+    }
+
+    @Test
+    public void invalid() {
+        assertThrows(IllegalArgumentException.class, () -> Lsn.parse("16B374D848"));
+        assertThrows(IllegalArgumentException.class, () -> Lsn.parse("16/"));
+    }
+}
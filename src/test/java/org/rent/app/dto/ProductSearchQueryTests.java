@@ -0,0 +1,36 @@
+package org.rent.app.dto;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ProductSearchQueryTests {
+    /*
+     * brand.keyword is filtered by the normalized query value and tagged with it,
+     * the normalizer of the index must produce the same value from a row
+     */
+    @Test
+    public void normalizerOfIndexMatchesQuery() throws IOException {
+        JsonNode analysis;
+        try (InputStream in = getClass().getResourceAsStream("/elasticsearch/product-settings.json")) {
+            analysis = new ObjectMapper().readTree(in).get("analysis");
+        }
+        var normalizer = analysis.get("normalizer").get("search_query");
+        for (String brand : List.of("Acme", "  Acme   Corp ", "ACME\tcorp", "Über  Brand")) {
+            String value = brand;
+            for (JsonNode name : normalizer.get("char_filter")) {
+                var charFilter = analysis.get("char_filter").get(name.asText());
+                value = value.replaceAll(charFilter.get("pattern").asText(), charFilter.get("replacement").asText());
+            }
+            assertEquals(List.of("lowercase"), List.of(normalizer.get("filter").get(0).asText()));
+            assertEquals(ProductSearchQuery.normalize(brand), value.toLowerCase(Locale.ROOT));
+        }
+    }
+}
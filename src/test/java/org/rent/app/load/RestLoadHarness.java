@@ -0,0 +1,349 @@
+package org.rent.app.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * RestLoadHarness
+ * <p>
+ * Drives create/update/delete of {@code ProductController} from concurrent clients and reports
+ * throughput, latency percentiles, CDC timeouts (504) and rejected writes (503),
+ * then compares the touched products in the database and in the index.
+ * Run it once against the application with the {@code vanilla} profile and once with the {@code sync} profile,
+ * with the same settings, to see what the consistency costs. It is not a test, surefire does not run it.
+ * <pre>
+ * docker compose -f src/test/resources/load/docker-compose.yml up -d
+ * mvn spring-boot:run -Dspring-boot.run.profiles=sync
+ * mvn -B test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) -Dload.label=sync org.rent.app.load.RestLoadHarness
+ * </pre>
+ * Settings are system properties: {@code load.url}, {@code load.threads}, {@code load.warmup-sec}, {@code load.duration-sec},
+ * {@code load.mix} (create:update:delete weights), {@code load.hot-ids} (updates and deletes hit this many recent products,
+ * so clients race on the same rows), {@code load.settle-sec}, {@code load.db-url}, {@code load.db-user}, {@code load.db-password},
+ * {@code load.es-url}, {@code load.label} and {@code load.report} (a CSV file the summary line is appended to).
+ * </p>
+ * <p>
+ * Only local processes are accepted: the harness writes and deletes a lot of rows.
+ * </p>
+ */
+public class RestLoadHarness {
+    private static final Set<String> LOCAL_HOSTS = Set.of("localhost", "127.0.0.1", "::1", "[::1]");
+    private static final String INDEX = "product";
+    private static final int MGET_BATCH = 1000;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private enum Op {CREATE, UPDATE, DELETE}
+
+    private enum Outcome {OK, CDC_TIMEOUT, REJECTED, ERROR}
+
+    /*
+     * latencies of one client thread, they are merged after the run
+     */
+    private static class Samples {
+        private final Map<Op, long[]> nanos = new EnumMap<>(Op.class);
+        private final Map<Op, Integer> counts = new EnumMap<>(Op.class);
+        private final Map<Outcome, Long> outcomes = new EnumMap<>(Outcome.class);
+
+        void add(Op op, long latencyNanos, Outcome outcome) {
+            outcomes.merge(outcome, 1L, Long::sum);
+            if (outcome != Outcome.OK) return;
+            int count = counts.getOrDefault(op, 0);
+            long[] values = nanos.computeIfAbsent(op, o -> new long[1024]);
+            if (count == values.length) nanos.put(op, values = Arrays.copyOf(values, count * 2));
+            values[count] = latencyNanos;
+            counts.put(op, count + 1);
+        }
+
+        long[] get(Op op) {
+            return Arrays.copyOf(nanos.getOrDefault(op, new long[0]), counts.getOrDefault(op, 0));
+        }
+    }
+
+    private final String url = System.getProperty("load.url", "http://localhost:8080");
+    private final int threads = Integer.getInteger("load.threads", 16);
+    private final int warmupSec = Integer.getInteger("load.warmup-sec", 10);
+    private final int durationSec = Integer.getInteger("load.duration-sec", 60);
+    private final int[] mix = Arrays.stream(System.getProperty("load.mix", "20:70:10").split(":")).mapToInt(Integer::parseInt).toArray();
+    private final int hotIds = Integer.getInteger("load.hot-ids", 50);
+    private final int settleSec = Integer.getInteger("load.settle-sec", 5);
+    private final String dbUrl = System.getProperty("load.db-url", "jdbc:postgresql://localhost:5432/postgres");
+    private final String dbUser = System.getProperty("load.db-user", "postgres");
+    private final String dbPassword = System.getProperty("load.db-password", "mypassword");
+    private final String esUrl = System.getProperty("load.es-url", "http://localhost:9200");
+    private final String label = System.getProperty("load.label", "unnamed");
+    private final String report = System.getProperty("load.report");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final String runPrefix = "load-" + System.currentTimeMillis() + "-";
+    /*
+     * recent products, updates and deletes pick one at random. 0 is an empty slot.
+     */
+    private final AtomicLongArray hot;
+    private final AtomicLong created = new AtomicLong();
+    private final Set<Long> touchedIds = ConcurrentHashMap.newKeySet();
+    private final Map<String, Samples> samplesByThread = new ConcurrentHashMap<>();
+    private volatile boolean measuring = false;
+    private volatile boolean stopped = false;
+
+    private RestLoadHarness() {
+        if (mix.length != 3) {
+            throw new IllegalArgumentException("load.mix must be create:update:delete weights, e.g. 20:70:10");
+        }
+        hot = new AtomicLongArray(hotIds);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new RestLoadHarness().run();
+    }
+
+    private void run() throws Exception {
+        requireLocal(URI.create(url).getHost(), "load.url");
+        requireLocal(URI.create(esUrl).getHost(), "load.es-url");
+        requireLocal(URI.create(dbUrl.substring("jdbc:".length())).getHost(), "load.db-url");
+        System.out.printf("[%s] %d threads, warmup %d sec, %d sec, mix %s, %d hot ids, %s%n",
+                label, threads, warmupSec, durationSec, Arrays.toString(mix), hotIds, url);
+
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            var client = new Thread(this::client, "load-" + i);
+            clients.add(client);
+            client.start();
+        }
+        // nothing is measured during warmup
+        Thread.sleep(warmupSec * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationSec * 1000L);
+        measuring = false;
+        long elapsedNanos = System.nanoTime() - start;
+        stopped = true;
+        for (Thread client : clients) client.join();
+
+        Map<Op, long[]> latencies = new EnumMap<>(Op.class);
+        Map<Outcome, Long> outcomes = new EnumMap<>(Outcome.class);
+        for (Op op : Op.values()) {
+            latencies.put(op, samplesByThread.values().stream().map(s -> s.get(op)).reduce(new long[0], RestLoadHarness::concat));
+        }
+        samplesByThread.values().forEach(s -> s.outcomes.forEach((k, v) -> outcomes.merge(k, v, Long::sum)));
+
+        Thread.sleep(settleSec * 1000L);
+        var divergence = divergence();
+        print(latencies, outcomes, elapsedNanos, divergence);
+    }
+
+    private void client() {
+        var samples = new Samples();
+        samplesByThread.put(Thread.currentThread().getName(), samples);
+        var random = ThreadLocalRandom.current();
+        int total = mix[0] + mix[1] + mix[2];
+        while (!stopped) {
+            int pick = random.nextInt(total);
+            Op op = pick < mix[0] ? Op.CREATE : pick < mix[0] + mix[1] ? Op.UPDATE : Op.DELETE;
+            int slot = random.nextInt(hotIds);
+            long id = hot.get(slot);
+            if (op != Op.CREATE && id == 0) op = Op.CREATE;
+            if (op == Op.DELETE && !hot.compareAndSet(slot, id, 0)) continue;
+            long begin = System.nanoTime();
+            Outcome outcome;
+            try {
+                outcome = switch (op) {
+                    case CREATE -> create();
+                    case UPDATE -> send("PUT", product(id, random));
+                    case DELETE -> send("DELETE", product(id, random));
+                };
+            } catch (IOException e) {
+                outcome = Outcome.ERROR;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (measuring) {
+                samples.add(op, System.nanoTime() - begin, outcome);
+            }
+        }
+    }
+
+    private Outcome create() throws IOException, InterruptedException {
+        var response = http.send(request("POST", product(0, ThreadLocalRandom.current())), HttpResponse.BodyHandlers.ofString());
+        var outcome = outcome(response.statusCode());
+        if (outcome == Outcome.OK) {
+            long id = mapper.readTree(response.body()).path("id").asLong();
+            touchedIds.add(id);
+            hot.set((int) (created.getAndIncrement() % hotIds), id);
+        }
+        return outcome;
+    }
+
+    private Outcome send(String method, ObjectNode product) throws IOException, InterruptedException {
+        touchedIds.add(product.get("id").asLong());
+        return outcome(http.send(request(method, product), HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    private HttpRequest request(String method, ObjectNode product) {
+        return HttpRequest.newBuilder(URI.create(url + "/product"))
+                .timeout(Duration.ofSeconds(60))
+                .header("Content-Type", "application/json")
+                .method(method, HttpRequest.BodyPublishers.ofString(product.toString()))
+                .build();
+    }
+
+    private ObjectNode product(long id, ThreadLocalRandom random) {
+        var product = mapper.createObjectNode();
+        if (id != 0) product.put("id", id);
+        product.put("name", runPrefix + random.nextInt(1_000_000));
+        product.put("description", "load " + Thread.currentThread().getName());
+        product.put("brand", "brand" + random.nextInt(20));
+        product.put("category", random.nextInt(1, 50));
+        product.put("owner", random.nextInt(1, 1000));
+        product.put("price", random.nextInt(1, 100_000));
+        return product;
+    }
+
+    private static Outcome outcome(int status) {
+        if (status >= 200 && status < 300) return Outcome.OK;
+        if (status == 504) return Outcome.CDC_TIMEOUT; // CDCTimeoutException
+        if (status == 503) return Outcome.REJECTED; // WritesRejectedException
+        return Outcome.ERROR;
+    }
+
+    private record Divergence(int checked, int missingInIndex, int deletedInIndex, int different) {
+        int total() {
+            return missingInIndex + deletedInIndex + different;
+        }
+    }
+
+    /*
+     * products updated after a concurrent delete are created again by JPA merge with a new id,
+     * so the rows of the run are found by the name prefix as well
+     */
+    private Divergence divergence() throws SQLException, IOException, InterruptedException {
+        Map<Long, Map<String, Object>> rows = new HashMap<>();
+        try (Connection connection = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             var statement = connection.prepareStatement(
+                     "SELECT id, name, description, brand, category_id, owner_id, price FROM product WHERE id = any(?) OR name LIKE ?")) {
+            statement.setArray(1, connection.createArrayOf("bigint", touchedIds.toArray()));
+            statement.setString(2, runPrefix + "%");
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    rows.put(rs.getLong(1), Map.of("name", rs.getString(2), "description", rs.getString(3), "brand", rs.getString(4),
+                            "category", rs.getLong(5), "owner", rs.getLong(6), "price", rs.getLong(7)));
+                }
+            }
+        }
+        List<Long> ids = new ArrayList<>(touchedIds);
+        rows.keySet().stream().filter(id -> !touchedIds.contains(id)).forEach(ids::add);
+        int missingInIndex = 0, deletedInIndex = 0, different = 0;
+        for (int from = 0; from < ids.size(); from += MGET_BATCH) {
+            var batch = ids.subList(from, Math.min(ids.size(), from + MGET_BATCH));
+            var body = mapper.createObjectNode();
+            batch.forEach(body.putArray("ids")::add);
+            var response = http.send(HttpRequest.newBuilder(URI.create(esUrl + "/" + INDEX + "/_mget"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString())).build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("_mget failed " + response.statusCode() + " " + response.body());
+            }
+            for (JsonNode doc : mapper.readTree(response.body()).path("docs")) {
+                var row = rows.get(doc.path("_id").asLong());
+                boolean found = doc.path("found").asBoolean();
+                if (Objects.isNull(row)) {
+                    if (found) deletedInIndex++;
+                } else if (!found) {
+                    missingInIndex++;
+                } else if (!same(row, doc.path("_source"))) {
+                    different++;
+                }
+            }
+        }
+        return new Divergence(ids.size(), missingInIndex, deletedInIndex, different);
+    }
+
+    private static boolean same(Map<String, Object> row, JsonNode source) {
+        for (var e : row.entrySet()) {
+            var value = source.path(e.getKey());
+            Object indexed = e.getValue() instanceof Long ? (Object) value.asLong() : value.asText();
+            if (!e.getValue().equals(indexed)) return false;
+        }
+        return true;
+    }
+
+    private void print(Map<Op, long[]> latencies, Map<Outcome, Long> outcomes, long elapsedNanos, Divergence divergence)
+            throws IOException {
+        double sec = elapsedNanos / 1e9;
+        long okTotal = 0;
+        System.out.printf("%-7s %10s %10s %9s %9s %9s %9s %9s%n", "op", "ok", "ops/sec", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Op op : Op.values()) {
+            long[] values = latencies.get(op);
+            Arrays.sort(values);
+            okTotal += values.length;
+            System.out.printf("%-7s %10d %10.1f", op, values.length, values.length / sec);
+            for (double p : PERCENTILES) System.out.printf(" %9.2f", percentile(values, p));
+            System.out.printf(" %9.2f%n", values.length == 0 ? 0 : values[values.length - 1] / 1e6);
+        }
+        System.out.printf("total ok %d (%.1f ops/sec), cdc timeouts %d, rejected %d, errors %d%n", okTotal, okTotal / sec,
+                outcomes.getOrDefault(Outcome.CDC_TIMEOUT, 0L), outcomes.getOrDefault(Outcome.REJECTED, 0L),
+                outcomes.getOrDefault(Outcome.ERROR, 0L));
+        System.out.printf("divergence: checked %d, missing in index %d, deleted in db but in index %d, different %d%n",
+                divergence.checked(), divergence.missingInIndex(), divergence.deletedInIndex(), divergence.different());
+        if (Objects.nonNull(report)) {
+            var path = Path.of(report);
+            if (!Files.exists(path)) {
+                Files.writeString(path, "time,label,threads,mix,hot_ids,ops_per_sec,p50_ms,p99_ms,p999_ms,cdc_timeouts,rejected,errors,checked,diverged\n");
+            }
+            long[] all = latencies.values().stream().reduce(new long[0], RestLoadHarness::concat);
+            Arrays.sort(all);
+            Files.writeString(path, "%s,%s,%d,%s,%d,%.1f,%.2f,%.2f,%.2f,%d,%d,%d,%d,%d%n".formatted(Instant.now(), label, threads,
+                    String.join(":", Arrays.stream(mix).mapToObj(String::valueOf).toList()), hotIds, okTotal / sec,
+                    percentile(all, 50), percentile(all, 99), percentile(all, 99.9),
+                    outcomes.getOrDefault(Outcome.CDC_TIMEOUT, 0L), outcomes.getOrDefault(Outcome.REJECTED, 0L),
+                    outcomes.getOrDefault(Outcome.ERROR, 0L), divergence.checked(), divergence.total()), StandardOpenOption.APPEND);
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int idx = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))] / 1e6;
+    }
+
+    private static long[] concat(long[] a, long[] b) {
+        long[] res = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, res, a.length, b.length);
+        return res;
+    }
+
+    private static void requireLocal(String host, String property) {
+        if (Objects.isNull(host) || !LOCAL_HOSTS.contains(host)) {
+            throw new IllegalArgumentException(property + " must point to a local process, not " + host);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.rent.app.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.rent.app.domain.ProductDB;
+import org.rent.app.domain.ProductELK;
+import org.rent.app.domain.cdc.Lsn;
+import org.rent.app.repository.ProductJPARepository;
+import org.rent.app.service.cdc.TestDecodingCDCService;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ProductReadServiceTests {
+    private final ProductReadService readService = new ProductReadService();
+    private final TestDecodingCDCService cdcService = mock(TestDecodingCDCService.class);
+    private final ProductJPARepository jpaRepository = mock(ProductJPARepository.class);
+    private final ProductIndexRouting routing = mock(ProductIndexRouting.class);
+
+    @BeforeEach
+    public void init() {
+        ReflectionTestUtils.setField(readService, "cdcService", cdcService);
+        ReflectionTestUtils.setField(readService, "jpaRepository", jpaRepository);
+        ReflectionTestUtils.setField(readService, "routing", routing);
+        ReflectionTestUtils.setField(readService, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.invokeMethod(readService, "init");
+        when(routing.findById(any())).thenReturn(Optional.of(ProductELK.builder().id(7L).name("index").build()));
+        when(jpaRepository.findById(any())).thenReturn(Optional.of(ProductDB.builder().id(7L).name("database").build()));
+    }
+
+    @Test
+    public void ownWriteIsReadFromIndex() {
+        // the write commits, captures its token and processes the pipeline up to a later lsn
+        when(cdcService.getCurrentWalLsn()).thenReturn(Lsn.parse("0/100"), Lsn.parse("0/180"));
+        readService.captureWriteToken();
+        when(cdcService.getAppliedWalLsn()).thenReturn(Lsn.parse("0/120"));
+        Lsn token = readService.getWriteToken();
+        assertEquals(Lsn.parse("0/100"), token);
+        assertEquals("index", readService.findById(7L, token).orElseThrow().getName());
+        verify(jpaRepository, never()).findById(any());
+    }
+
+    @Test
+    public void readBehindTheIndexGoesToDatabase() {
+        when(cdcService.getAppliedWalLsn()).thenReturn(Lsn.parse("0/120"));
+        assertEquals("database", readService.findById(7L, Lsn.parse("0/121")).orElseThrow().getName());
+        assertEquals("index", readService.findById(7L, null).orElseThrow().getName());
+    }
+
+    @Test
+    public void tokenIsReadIfNotCaptured() {
+        when(cdcService.getCurrentWalLsn()).thenReturn(Lsn.parse("0/100"), Lsn.parse("0/200"));
+        readService.captureWriteToken();
+        assertEquals(Lsn.parse("0/100"), readService.getWriteToken());
+        // the captured token is used once
+        assertEquals(Lsn.parse("0/200"), readService.getWriteToken());
+    }
+
+    @Test
+    public void routedReadWaitsForRefresh() {
+        when(routing.getProperty()).thenReturn("category");
+        // a background drain acknowledged the write, but did not refresh the index
+        when(cdcService.getAppliedWalLsn()).thenReturn(Lsn.parse("0/120"));
+        when(cdcService.getRefreshedWalLsn()).thenReturn(Lsn.parse("0/90"));
+        assertEquals("database", readService.findById(7L, Lsn.parse("0/100")).orElseThrow().getName());
+
+        when(cdcService.getRefreshedWalLsn()).thenReturn(Lsn.parse("0/120"));
+        assertEquals("index", readService.findById(7L, Lsn.parse("0/100")).orElseThrow().getName());
+    }
+}
@@ -0,0 +1,57 @@
+package org.rent.app.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.rent.app.domain.ProductELK;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SearchResultCacheTests {
+    private final SearchResultCache cache = new SearchResultCache();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @BeforeEach
+    public void init() {
+        ReflectionTestUtils.setField(cache, "maxEntries", 2);
+        ReflectionTestUtils.setField(cache, "ttlSec", 60L);
+        ReflectionTestUtils.setField(cache, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.invokeMethod(cache, "init");
+    }
+
+    @Test
+    public void evictByTag() {
+        String category1 = SearchResultCache.tag(ProductELK.class, "category", 1);
+        String category2 = SearchResultCache.tag(ProductELK.class, "category", 2);
+        get("q1", category1);
+        get("q2", category2);
+        get("q1", category1);
+        assertEquals(2, loads.get());
+
+        cache.evict(List.of(category1));
+        get("q1", category1);
+        get("q2", category2);
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        get("q1", "a");
+        get("q2", "b");
+        get("q1", "a");
+        get("q3", "c"); // q2 is evicted
+        get("q1", "a");
+        assertEquals(3, loads.get());
+        get("q2", "b");
+        assertEquals(4, loads.get());
+    }
+
+    private void get(String key, String tag) {
+        cache.get(key, Set.of(tag), () -> key + loads.incrementAndGet());
+    }
+}
@@ -0,0 +1,84 @@
+package org.rent.app.service.cdc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AppliedLsnIndexTests {
+    @TempDir
+    Path dir;
+
+    private AppliedLsnIndex open(String indexUuid) {
+        var index = new AppliedLsnIndex();
+        ReflectionTestUtils.setField(index, "enabled", true);
+        ReflectionTestUtils.setField(index, "dir", dir);
+        ReflectionTestUtils.setField(index, "expectedKeys", 10L);
+        index.register("product", Long.class, indexUuid);
+        return index;
+    }
+
+    private static void close(AppliedLsnIndex index) {
+        ReflectionTestUtils.invokeMethod(index, "close");
+    }
+
+    @Test
+    public void mapIsKeptForTheSameIndex() {
+        var index = open("uuid-1");
+        index.applied("product", "1", 100);
+        index.commit();
+        close(index);
+
+        index = open("uuid-1");
+        assertTrue(index.isStale("product", "1", 100));
+        close(index);
+    }
+
+    @Test
+    public void mapIsClearedForAnotherIndex() {
+        var index = open("uuid-1");
+        index.applied("product", "1", 100);
+        index.commit();
+        close(index);
+
+        index = open("uuid-2");
+        assertFalse(index.isStale("product", "1", 100));
+        close(index);
+    }
+
+    @Test
+    public void truncateSetsTheNewIndex() {
+        var index = open("uuid-1");
+        index.applied("product", "1", 100);
+        index.commit();
+        index.truncate("product", 200, "uuid-2");
+        close(index);
+
+        index = open("uuid-2");
+        assertTrue(index.isStale("product", "1", 200));
+        assertFalse(index.isStale("product", "1", 201));
+        close(index);
+    }
+
+    @Test
+    public void outOfOrderDeleteSkipsOlderOperations() {
+        var index = open("uuid-1");
+        // the current chunk has an older operation of the row
+        index.applied("product", "1", 100);
+        index.deletedOutOfOrder("product", "1", 300);
+        assertTrue(index.isStale("product", "1", 200));
+        assertFalse(index.isStale("product", "1", 301));
+        // the chunk fails, the delete stays
+        index.reset();
+        assertTrue(index.isStale("product", "1", 200));
+        close(index);
+
+        index = open("uuid-1");
+        assertTrue(index.isStale("product", "1", 300));
+        close(index);
+    }
+}
@@ -0,0 +1,116 @@
+package org.rent.app.service.cdc;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.rent.app.domain.cdc.Lsn;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ElasticsearchBulkSinkTests {
+    private static final String INFO_RESPONSE = """
+            {"name":"test","cluster_name":"test","cluster_uuid":"test","tagline":"You Know, for Search",
+            "version":{"number":"7.17.4","build_flavor":"default","build_type":"docker","build_hash":"test",
+            "build_date":"2022-05-18T18:04:20.964345128Z","build_snapshot":false,"lucene_version":"8.11.1",
+            "minimum_wire_compatibility_version":"6.8.0","minimum_index_compatibility_version":"6.0.0-beta1"}}""";
+    private static final String BULK_RESPONSE = """
+            {"took":1,"errors":false,"items":[]}""";
+    private static final String REFRESH_RESPONSE = """
+            {"_shards":{"total":1,"successful":1,"failed":0}}""";
+
+    private final ElasticsearchBulkSink sink = new ElasticsearchBulkSink();
+    /*
+     * requests received by the fake index: path and query
+     */
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private RestHighLevelClient client;
+
+    @BeforeEach
+    public void init() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            var uri = exchange.getRequestURI();
+            // the high level client checks the version of the cluster before its first request
+            boolean info = uri.getPath().equals("/");
+            if (!info) {
+                requests.add(uri.getPath() + (Objects.isNull(uri.getQuery()) ? "" : "?" + uri.getQuery()));
+            }
+            String response = info ? INFO_RESPONSE : uri.getPath().endsWith("/_refresh") ? REFRESH_RESPONSE : BULK_RESPONSE;
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("X-Elastic-Product", "Elasticsearch");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        client = new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())));
+
+        ReflectionTestUtils.setField(sink, "maxInFlight", 4);
+        ReflectionTestUtils.setField(sink, "bulkActions", 1000);
+        ReflectionTestUtils.setField(sink, "bulkBytes", 1 << 20);
+        ReflectionTestUtils.setField(sink, "ackTimeoutSec", 5L);
+        ReflectionTestUtils.setField(sink, "refreshIndices", Set.of("product"));
+        ReflectionTestUtils.setField(sink, "client", client);
+        ReflectionTestUtils.invokeMethod(sink, "init");
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    /*
+     * a chunk of one transaction that updates a document of the index
+     */
+    private void chunk(String index, String lsn, boolean waitForRefresh) {
+        sink.reset();
+        sink.update(index, "1", buffer -> buffer.writeAscii("{\"doc\":{}}"));
+        sink.commit(Lsn.parse(lsn));
+        sink.awaitConfirmed(Lsn.parse(lsn), waitForRefresh);
+    }
+
+    @Test
+    public void lastBulkWaitsForRefresh() {
+        chunk("product", "0/10", true);
+        assertEquals(List.of("/_bulk?refresh=wait_for"), requests);
+        sink.refreshTouched();
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void earlierChunkIsRefreshedByTheLastOne() {
+        // the writer's change is in the first chunk, the last chunk touches another index only
+        chunk("product", "0/10", false);
+        chunk("category_summary", "0/20", true);
+        assertEquals(List.of("/_bulk", "/_bulk", "/product/_refresh"), requests);
+    }
+
+    @Test
+    public void backgroundChangesAreRefreshedForTheNextWaitingCall() {
+        chunk("product", "0/10", false);
+        chunk("product", "0/20", false);
+        assertEquals(List.of("/_bulk", "/_bulk"), requests);
+        // a waiting call finds nothing new in the slot
+        sink.refreshTouched();
+        assertEquals(List.of("/_bulk", "/_bulk", "/product/_refresh"), requests);
+        sink.refreshTouched();
+        assertEquals(3, requests.size());
+    }
+}
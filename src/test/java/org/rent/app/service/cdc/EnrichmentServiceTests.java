@@ -0,0 +1,177 @@
+package org.rent.app.service.cdc;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.rent.app.domain.ProductELK;
+import org.rent.app.domain.cdc.Lsn;
+import org.rent.app.service.Enrichment;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.convert.MappingElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EnrichmentServiceTests {
+    private static final String INFO_RESPONSE = """
+            {"name":"test","cluster_name":"test","cluster_uuid":"test","tagline":"You Know, for Search",
+            "version":{"number":"7.17.4","build_flavor":"default","build_type":"docker","build_hash":"test",
+            "build_date":"2022-05-18T18:04:20.964345128Z","build_snapshot":false,"lucene_version":"8.11.1",
+            "minimum_wire_compatibility_version":"6.8.0","minimum_index_compatibility_version":"6.0.0-beta1"}}""";
+    private static final String UPDATE_BY_QUERY_RESPONSE = """
+            {"took":1,"timed_out":false,"total":1,"updated":1,"deleted":0,"batches":1,"version_conflicts":0,"noops":0,
+            "retries":{"bulk":0,"search":0},"throttled_millis":0,"requests_per_second":-1.0,"throttled_until_millis":0,"failures":[]}""";
+
+    private final EnrichmentService enrichments = new EnrichmentService();
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    /*
+     * bodies of the update by query requests received by the fake index
+     */
+    private final List<String> updates = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private RestHighLevelClient client;
+    private Function<String, String> categoryName;
+
+    @BeforeEach
+    public void init() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            // the client checks the version of the cluster before the first request
+            boolean info = exchange.getRequestURI().getPath().equals("/");
+            if (!info) {
+                updates.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            }
+            byte[] body = (info ? INFO_RESPONSE : UPDATE_BY_QUERY_RESPONSE).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("X-Elastic-Product", "Elasticsearch");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        client = new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())));
+
+        var operations = mock(ElasticsearchOperations.class);
+        when(operations.getElasticsearchConverter()).thenReturn(new MappingElasticsearchConverter(new SimpleElasticsearchMappingContext()));
+        when(operations.getIndexCoordinatesFor(ProductELK.class)).thenReturn(IndexCoordinates.of("product"));
+        when(operations.indexOps(ProductELK.class)).thenReturn(mock(IndexOperations.class));
+        when(jdbcTemplate.queryForList(startsWith("SELECT cast(id as text) AS k"), eq(11)))
+                .thenReturn(List.of(row("1", "Tools"), row("2", "Garden")));
+
+        ReflectionTestUtils.setField(enrichments, "maxEntries", 10);
+        ReflectionTestUtils.setField(enrichments, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(enrichments, "client", client);
+        ReflectionTestUtils.setField(enrichments, "operations", operations);
+        ReflectionTestUtils.setField(enrichments, "searchCacheInvalidator", mock(SearchCacheInvalidator.class));
+        ReflectionTestUtils.setField(enrichments, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.invokeMethod(enrichments, "init");
+        var lookups = enrichments.register(ProductELK.class,
+                List.of(new Enrichment("categoryName", "category", "category", "id", "name")), Map.of("category", "category"));
+        categoryName = lookups.get("categoryName").lookup();
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    private static Map<String, Object> row(String key, String value) {
+        Map<String, Object> res = new HashMap<>();
+        res.put("k", key);
+        res.put("v", value);
+        return res;
+    }
+
+    private static TransactionOperation op(TransactionOperation.OperationType type, Map<String, String> values,
+                                           Map<String, String> oldValues) {
+        return new TransactionOperation(Lsn.parse("0/100"), type, "category", values, oldValues, null);
+    }
+
+    @Test
+    public void keyChangeAndDeleteUpdateTheDocuments() {
+        assertEquals("Tools", categoryName.apply("1"));
+        enrichments.apply(op(TransactionOperation.OperationType.UPDATE, Map.of("id", "3", "name", "Tools"), Map.of("id", "1", "name", "Tools")));
+        enrichments.apply(op(TransactionOperation.OperationType.DELETE, Map.of("id", "2"), null));
+
+        assertNull(categoryName.apply("1"));
+        assertEquals("Tools", categoryName.apply("3"));
+        assertNull(categoryName.apply("2"));
+        // the whole table is in the cache, deleted keys are not looked up in the database
+        verify(jdbcTemplate, never()).queryForList(anyString(), any(Object[].class), any(int[].class), eq(String.class));
+
+        enrichments.flush(false);
+        assertEquals(1, updates.size());
+        String update = updates.get(0);
+        assertTrue(update.contains("\"terms\":{\"category\":[\"1\",\"2\",\"3\"]"), update);
+        assertTrue(update.contains("\"values\":{\"1\":null,\"2\":null,\"3\":\"Tools\"}"), update);
+
+        // the changes are flushed once
+        enrichments.flush(false);
+        assertEquals(1, updates.size());
+    }
+
+    @Test
+    public void unchangedValueIsNotFlushed() {
+        enrichments.apply(op(TransactionOperation.OperationType.UPDATE, Map.of("id", "1", "name", "Tools"), null));
+        enrichments.flush(false);
+        assertTrue(updates.isEmpty());
+    }
+
+    @Test
+    public void truncateUpdatesAllDocuments() {
+        enrichments.apply(op(TransactionOperation.OperationType.TRUNCATE, Map.of(), null));
+        assertNull(categoryName.apply("1"));
+
+        enrichments.flush(false);
+        assertEquals(1, updates.size());
+        assertTrue(updates.get(0).contains("\"exists\":{\"field\":\"category\""), updates.get(0));
+    }
+
+    @Test
+    public void changesOfFailedChunkAreDetectedAgain() {
+        enrichments.apply(op(TransactionOperation.OperationType.UPDATE, Map.of("id", "1", "name", "Hand tools"), null));
+        // the chunk is not acknowledged and is read again from the slot
+        enrichments.reset();
+        enrichments.flush(false);
+        assertTrue(updates.isEmpty());
+
+        // the dropped entry is looked up as of the database
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), any(int[].class), eq(String.class))).thenReturn(List.of("Tools"));
+        assertEquals("Tools", categoryName.apply("1"));
+
+        enrichments.apply(op(TransactionOperation.OperationType.UPDATE, Map.of("id", "1", "name", "Hand tools"), null));
+        assertEquals("Hand tools", categoryName.apply("1"));
+        enrichments.flush(false);
+        assertEquals(1, updates.size());
+        assertTrue(updates.get(0).contains("\"values\":{\"1\":\"Hand tools\"}"), updates.get(0));
+    }
+}
@@ -0,0 +1,54 @@
+package org.rent.app.service.cdc;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * LongLongMappedMapBenchmark
+ * <p>
+ * Lookup and update throughput of {@link LongLongMappedMap}. It is not a test, surefire does not run it.
+ * <pre>
+ * mvn -B test-compile
+ * java -cp target/classes:target/test-classes org.rent.app.service.cdc.LongLongMappedMapBenchmark [keys] [dir]
+ * </pre>
+ * Keys are sequential ids as product ids are, lookups and updates take random ids.
+ * </p>
+ */
+public class LongLongMappedMapBenchmark {
+    public static void main(String[] args) throws Exception {
+        long keys = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        Path dir = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("lsn-map");
+        Path path = dir.resolve("benchmark.lsnmap");
+        Files.deleteIfExists(path);
+        var random = ThreadLocalRandom.current();
+        try (var map = LongLongMappedMap.open(path, keys)) {
+            long start = System.nanoTime();
+            for (long key = 1; key <= keys; key++) map.put(key, key);
+            report("insert", keys, start);
+
+            start = System.nanoTime();
+            long found = 0;
+            for (long i = 0; i < keys; i++) if (map.get(random.nextLong(1, keys + 1)) != LongLongMappedMap.NO_VALUE) found++;
+            report("lookup", keys, start);
+
+            start = System.nanoTime();
+            for (long i = 0; i < keys; i++) map.put(random.nextLong(1, keys + 1), keys + i + 1);
+            report("update", keys, start);
+
+            start = System.nanoTime();
+            for (long i = 0; i < keys; i++) map.get(keys + random.nextLong(1, keys + 1));
+            report("miss", keys, start);
+
+            System.out.printf("keys %d found %d capacity %d file %d MB heap %d MB%n", map.size(), found, map.capacity(),
+                    Files.size(path) >> 20, (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20);
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static void report(String name, long ops, long start) {
+        double sec = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-6s %,12.0f ops/sec%n", name, ops / sec);
+    }
+}
@@ -0,0 +1,74 @@
+package org.rent.app.service.cdc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LongLongMappedMapTests {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void putAndGet() throws Exception {
+        try (var map = LongLongMappedMap.open(dir.resolve("product.lsnmap"), 10)) {
+            map.put(1, 100);
+            map.put(2, 200);
+            map.put(1, 300);
+
+            assertEquals(300, map.get(1));
+            assertEquals(200, map.get(2));
+            assertEquals(LongLongMappedMap.NO_VALUE, map.get(3));
+            assertEquals(2, map.size());
+            assertThrows(IllegalArgumentException.class, () -> map.put(4, 0));
+        }
+    }
+
+    @Test
+    public void growAndReopen() throws Exception {
+        Path path = dir.resolve("product.lsnmap");
+        int keys = 100_000;
+        try (var map = LongLongMappedMap.open(path, 10)) {
+            for (long key = 1; key <= keys; key++) map.put(key, key * 10);
+            assertTrue(map.capacity() > keys);
+        }
+        try (var map = LongLongMappedMap.open(path, 10)) {
+            assertEquals(keys, map.size());
+            for (long key = 1; key <= keys; key++) assertEquals(key * 10, map.get(key));
+        }
+    }
+
+    @Test
+    public void clearSetsFloor() throws Exception {
+        Path path = dir.resolve("product.lsnmap");
+        try (var map = LongLongMappedMap.open(path, 10)) {
+            map.put(1, 100);
+            map.clear(500);
+            assertEquals(LongLongMappedMap.NO_VALUE, map.get(1));
+            assertEquals(0, map.size());
+        }
+        try (var map = LongLongMappedMap.open(path, 10)) {
+            assertEquals(500, map.getFloor());
+        }
+    }
+
+    @Test
+    public void ownerSurvivesGrowClearAndReopen() throws Exception {
+        Path path = dir.resolve("product.lsnmap");
+        try (var map = LongLongMappedMap.open(path, 10)) {
+            assertEquals("", map.getOwner());
+            map.setOwner("Zr3vGqBfQ8y0dYm2pN1x_w");
+            for (long key = 1; key <= 10_000; key++) map.put(key, key);
+            map.clear(500);
+            assertEquals("Zr3vGqBfQ8y0dYm2pN1x_w", map.getOwner());
+            assertThrows(IllegalArgumentException.class, () -> map.setOwner("x".repeat(33)));
+        }
+        try (var map = LongLongMappedMap.open(path, 10)) {
+            assertEquals("Zr3vGqBfQ8y0dYm2pN1x_w", map.getOwner());
+        }
+    }
+}
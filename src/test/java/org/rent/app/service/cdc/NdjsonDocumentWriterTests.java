@@ -0,0 +1,93 @@
+package org.rent.app.service.cdc;
+
+import org.junit.jupiter.api.Test;
+import org.rent.app.domain.ProductELK;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class NdjsonDocumentWriterTests {
+    private static final Map<String, String> COLUMN_BY_PROPERTY = Map.of(
+            "id", "id", "name", "name", "description", "description", "brand", "brand",
+            "category", "category_id", "owner", "owner_id", "price", "price", "updated", "updated");
+
+    private static final Map<String, NdjsonDocumentWriter.Lookup> LOOKUP_BY_PROPERTY = Map.of(
+            "categoryName", new NdjsonDocumentWriter.Lookup("category_id", key -> "2".equals(key) ? "Bikes" : null),
+            "ownerName", new NdjsonDocumentWriter.Lookup("owner_id", key -> null));
+
+    private final NdjsonDocumentWriter writer = NdjsonDocumentWriter.compile(
+            new SimpleElasticsearchMappingContext().getRequiredPersistentEntity(ProductELK.class), COLUMN_BY_PROPERTY, LOOKUP_BY_PROPERTY);
+
+    @Test
+    public void writeIndex() {
+        Map<String, String> columns = new HashMap<>();
+        columns.put("id", "7");
+        columns.put("name", "prod \"1\"");
+        columns.put("description", "привет\n");
+        columns.put("brand", "brand");
+        columns.put("category_id", "2");
+        columns.put("owner_id", "1");
+        columns.put("price", "100");
+        columns.put("updated", "2022-07-18 10:11:12.123456");
+        BulkBuffer buffer = new BulkBuffer(16);
+        writer.writeIndex(buffer, columns, 42L);
+        assertEquals("""
+                        {"index":{"_index":"product","_id":"7","version":42,"version_type":"external"}}
+                        {"_class":"org.rent.app.domain.ProductELK","id":7,"name":"prod \\"1\\"","description":"привет\\u000a",\
+                        "brand":"brand","category":2,"owner":1,"price":100,"updated":"2022-07-18T10:11:12.123","categoryName":"Bikes"}
+                        """,
+                buffer.toString());
+        assertEquals(1, buffer.actions());
+    }
+
+    @Test
+    public void nonFiniteNumberIsNull() {
+        Map<String, String> columns = new HashMap<>();
+        columns.put("id", "7");
+        columns.put("category_id", "NaN");
+        columns.put("price", "-Infinity");
+        BulkBuffer buffer = new BulkBuffer(16);
+        writer.writeSource(buffer, columns);
+        assertEquals("{\"_class\":\"org.rent.app.domain.ProductELK\",\"id\":7}", buffer.toString());
+    }
+
+    @Test
+    public void lookupRequiresColumn() {
+        assertThrows(IllegalArgumentException.class, () -> NdjsonDocumentWriter.compile(
+                new SimpleElasticsearchMappingContext().getRequiredPersistentEntity(ProductELK.class), COLUMN_BY_PROPERTY));
+    }
+
+    @Test
+    public void writeDelete() {
+        Map<String, String> columns = new HashMap<>();
+        columns.put("id", "7");
+        columns.put("name", null);
+        BulkBuffer buffer = new BulkBuffer(16);
+        writer.writeDelete(buffer, columns, 43L);
+        assertEquals("{\"delete\":{\"_index\":\"product\",\"_id\":\"7\",\"version\":43,\"version_type\":\"external\"}}\n",
+                buffer.toString());
+    }
+
+    @Test
+    public void writeRouted() {
+        var routed = NdjsonDocumentWriter.compile(new SimpleElasticsearchMappingContext().getRequiredPersistentEntity(ProductELK.class),
+                COLUMN_BY_PROPERTY, LOOKUP_BY_PROPERTY, "category");
+        Map<String, String> columns = new HashMap<>();
+        columns.put("id", "7");
+        columns.put("category_id", "2");
+        BulkBuffer buffer = new BulkBuffer(16);
+        routed.writeDelete(buffer, columns, 44L);
+        assertEquals("{\"delete\":{\"_index\":\"product\",\"_id\":\"7\",\"routing\":\"2\",\"version\":44,\"version_type\":\"external\"}}\n",
+                buffer.toString());
+        // a DELETE record of a table without REPLICA IDENTITY FULL
+        assertThrows(IllegalStateException.class, () -> routed.writeDelete(new BulkBuffer(16), Map.of("id", "7"), 45L));
+        // looked up properties are not columns
+        assertThrows(IllegalArgumentException.class, () -> NdjsonDocumentWriter.compile(
+                new SimpleElasticsearchMappingContext().getRequiredPersistentEntity(ProductELK.class),
+                COLUMN_BY_PROPERTY, LOOKUP_BY_PROPERTY, "categoryName"));
+    }
+}
@@ -0,0 +1,170 @@
+package org.rent.app.service.cdc;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.rent.app.domain.ProductELK;
+import org.rent.app.domain.cdc.Lsn;
+import org.rent.app.repository.cdc.SlotChangesRepository;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.convert.MappingElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PriorityLaneTests {
+    private static final String INFO_RESPONSE = """
+            {"name":"test","cluster_name":"test","cluster_uuid":"test","tagline":"You Know, for Search",
+            "version":{"number":"7.17.4","build_flavor":"default","build_type":"docker","build_hash":"test",
+            "build_date":"2022-05-18T18:04:20.964345128Z","build_snapshot":false,"lucene_version":"8.11.1",
+            "minimum_wire_compatibility_version":"6.8.0","minimum_index_compatibility_version":"6.0.0-beta1"}}""";
+    private static final String WRITE_RESPONSE = """
+            {"_index":"product","_type":"_doc","_id":"7","_version":1,"result":"%s",
+            "_shards":{"total":1,"successful":1,"failed":0},"_seq_no":0,"_primary_term":1}""";
+    private static final String CONFLICT_RESPONSE = """
+            {"error":{"root_cause":[{"type":"version_conflict_engine_exception","reason":"version conflict"}],
+            "type":"version_conflict_engine_exception","reason":"version conflict"},"status":409}""";
+
+    private final PriorityLane lane = new PriorityLane();
+    private final TestDecodingCDCService cdcService = mock(TestDecodingCDCService.class);
+    private final CatchUpModeService catchUpMode = mock(CatchUpModeService.class);
+    private final SlotChangesRepository slotChangesRepository = mock(SlotChangesRepository.class);
+    private final TransactionOperationProcessor processor = mock(TransactionOperationProcessor.class);
+    private final AppliedLsnIndex appliedLsns = mock(AppliedLsnIndex.class);
+    /*
+     * requests received by the fake index: method, path and query
+     */
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private volatile boolean conflict = false;
+    private HttpServer server;
+    private RestHighLevelClient client;
+
+    @BeforeEach
+    public void init() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            var uri = exchange.getRequestURI();
+            // the client checks the version of the cluster before its first request
+            boolean info = uri.getPath().equals("/");
+            String method = exchange.getRequestMethod();
+            if (!info) {
+                requests.add(method + " " + uri.getPath() + (Objects.isNull(uri.getQuery()) ? "" : "?" + uri.getQuery()));
+            }
+            String response = info ? INFO_RESPONSE : conflict ? CONFLICT_RESPONSE
+                    : WRITE_RESPONSE.formatted(method.equals("DELETE") ? "deleted" : "created");
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("X-Elastic-Product", "Elasticsearch");
+            exchange.sendResponseHeaders(!info && conflict ? 409 : 200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        client = new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())));
+
+        var converter = new MappingElasticsearchConverter(new SimpleElasticsearchMappingContext());
+        converter.afterPropertiesSet();
+        var operations = mock(ElasticsearchOperations.class);
+        when(operations.getElasticsearchConverter()).thenReturn(converter);
+        when(operations.getIndexCoordinatesFor(ProductELK.class)).thenReturn(IndexCoordinates.of("product"));
+        when(operations.stringIdRepresentation(any())).thenAnswer(invocation -> String.valueOf(invocation.getArgument(0, Object.class)));
+        when(cdcService.processNextCDCChunkInBackground()).thenReturn(new AsyncResult<>(0));
+        when(processor.getTableName(ProductELK.class)).thenReturn("product");
+        when(slotChangesRepository.getCurrentWalInsertLsn()).thenReturn(Lsn.parse("0/16B3800"));
+
+        ReflectionTestUtils.setField(lane, "enabled", true);
+        ReflectionTestUtils.setField(lane, "cdcService", cdcService);
+        ReflectionTestUtils.setField(lane, "catchUpMode", catchUpMode);
+        ReflectionTestUtils.setField(lane, "slotChangesRepository", slotChangesRepository);
+        ReflectionTestUtils.setField(lane, "client", client);
+        ReflectionTestUtils.setField(lane, "operations", operations);
+        ReflectionTestUtils.setField(lane, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(lane, "processor", processor);
+        ReflectionTestUtils.setField(lane, "appliedLsns", appliedLsns);
+        ReflectionTestUtils.invokeMethod(lane, "init");
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void versionIsBetweenOlderAndOwnOperations() {
+        Lsn insert = Lsn.parse("0/16B3800"); // read under the row lock
+        // committed before the row is locked: the operation and its COMMIT record, 24 bytes each at least
+        Lsn olderOp = Lsn.parse("0/16B37D0");
+        Lsn ownOp = insert; // the next record may start exactly at the insert lsn
+        long version = lane.getVersion();
+        assertTrue(olderOp.value() < version);
+        // enrichment flushes increment the version of the priority document by one each
+        assertTrue(version + PriorityLane.VERSION_GAP - 1 < ownOp.value());
+    }
+
+    @Test
+    public void indexWaitsForRefreshAndWakesThePipeline() {
+        long version = lane.getVersion();
+        lane.index(7L, ProductELK.builder().id(7L).name("bike").category(2L).build(), "2", version);
+        assertEquals(1, requests.size());
+        String request = requests.get(0);
+        assertTrue(request.startsWith("PUT /product/_doc/7?"), request);
+        assertTrue(request.contains("version=" + version), request);
+        assertTrue(request.contains("version_type=external"), request);
+        assertTrue(request.contains("routing=2"), request);
+        assertTrue(request.contains("refresh=wait_for"), request);
+        verify(cdcService).processNextCDCChunkInBackground();
+    }
+
+    @Test
+    public void refreshIsForcedInCatchUpMode() {
+        when(catchUpMode.isActive()).thenReturn(true);
+        lane.index(7L, ProductELK.builder().id(7L).build(), null, lane.getVersion());
+        assertTrue(requests.get(0).contains("refresh=true"), requests.get(0));
+    }
+
+    @Test
+    public void newerDocumentIsKept() {
+        // the pipeline has already indexed the write or a later one
+        conflict = true;
+        lane.index(7L, ProductELK.builder().id(7L).build(), null, lane.getVersion());
+        lane.delete(ProductELK.class, 7L, null, lane.getVersion());
+        assertEquals(2, requests.size());
+        verify(appliedLsns, never()).deletedOutOfOrder(anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    public void deleteIsRecordedAsApplied() {
+        long version = lane.getVersion();
+        lane.delete(ProductELK.class, 7L, null, version);
+        String request = requests.get(0);
+        assertTrue(request.startsWith("DELETE /product/_doc/7?"), request);
+        assertTrue(request.contains("version=" + version), request);
+        // older operations drained after the tombstone is gone are skipped as stale
+        verify(appliedLsns).deletedOutOfOrder("product", "7", version);
+    }
+}
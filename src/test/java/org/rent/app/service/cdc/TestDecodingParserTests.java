@@ -0,0 +1,95 @@
+package org.rent.app.service.cdc;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.rent.app.domain.cdc.CDCRecord;
+import org.rent.app.domain.cdc.Lsn;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestDecodingParserTests {
+    private final TestDecodingParser parser = new TestDecodingParser(table -> false, table -> List.of());
+
+    @Test
+    public void parseTransaction() {
+        List<ParsedCDCRecord> parsed = parser.parse(List.of(
+                new CDCRecord(100, 7, "BEGIN 7"),
+                new CDCRecord(101, 7, "table public.product: UPDATE: id[bigint]:1 name[character varying]:'it''s' brand[character varying]:null"),
+                new CDCRecord(102, 7, "table public.product, public.category: TRUNCATE: (no-flags)"),
+                new CDCRecord(103, 7, "COMMIT 7 (at 2022-07-18 10:11:12.123456+03)")));
+
+        assertEquals(ParsedCDCRecord.Kind.BEGIN, parsed.get(0).kind());
+        var update = parsed.get(1).operations().get(0);
+        assertEquals(TransactionOperation.OperationType.UPDATE, update.getOperationType());
+        assertEquals(Lsn.of(101), update.getLsn());
+        assertEquals("product", update.getTableName());
+        assertEquals("it's", update.getColumnValues().get("name"));
+        assertNull(update.getColumnValues().get("brand"));
+        assertNull(update.getRestoreSQLStatement());
+        assertEquals(List.of("product", "category"),
+                parsed.get(2).operations().stream().map(TransactionOperation::getTableName).toList());
+        assertEquals(ParsedCDCRecord.Kind.COMMIT, parsed.get(3).kind());
+        assertEquals(7, parsed.get(3).xid());
+        assertNotNull(parsed.get(3).commitTime());
+    }
+
+    @Test
+    public void parseOldKey() {
+        var update = parser.parse(List.of(new CDCRecord(101, 7,
+                        "table public.product: UPDATE: old-key: id[bigint]:1 price[bigint]:100 new-tuple: id[bigint]:1 price[bigint]:120")))
+                .get(0).operations().get(0);
+        assertEquals("100", update.getOldColumnValues().get("price"));
+        assertEquals("120", update.getColumnValues().get("price"));
+        assertNull(parser.parse(List.of(new CDCRecord(102, 7, "table public.product: INSERT: id[bigint]:2")))
+                .get(0).operations().get(0).getOldColumnValues());
+    }
+
+    @Test
+    public void parseHeartbeat() {
+        var parsed = parser.parse(List.of(new CDCRecord(200, 0,
+                "message: transactional: 0 prefix: elk_heartbeat, sz: 27 content:2026-10-19T10:00:00.000000Z"))).get(0);
+        assertEquals(ParsedCDCRecord.Kind.MESSAGE, parsed.kind());
+        assertEquals(Lsn.of(200), parsed.lsn());
+
+        var context = new CDCProcessingContext();
+        assertTrue(context.addMessage(parsed.lsn()));
+        assertEquals(Lsn.of(200), context.getLastLsn());
+        assertEquals(1, context.getScannedCDCRecords());
+    }
+
+    @Test
+    public void parseBatchEvent() throws Exception {
+        Path file = Files.createTempFile("parse", ".jfr");
+        try (var recording = new Recording()) {
+            recording.enable("org.rent.cdc.ParseBatch");
+            recording.start();
+            parser.parse(List.of(
+                    new CDCRecord(100, 7, "BEGIN 7"),
+                    new CDCRecord(101, 7, "table public.product: INSERT: id[bigint]:1"),
+                    new CDCRecord(102, 7, "COMMIT 7")));
+            recording.stop();
+            recording.dump(file);
+            var event = RecordingFile.readAllEvents(file).get(0);
+            assertEquals(100, event.getLong("firstLsn"));
+            assertEquals(102, event.getLong("lastLsn"));
+            assertEquals(3, event.getInt("records"));
+            assertEquals(1, event.getInt("operations"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void xidMismatch() {
+        assertThrows(IllegalStateException.class, () -> parser.parse(List.of(new CDCRecord(100, 7, "BEGIN 8"))));
+    }
+}
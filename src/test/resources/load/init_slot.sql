@@ -0,0 +1,2 @@
+ALTER TABLE product REPLICA IDENTITY FULL;
+SELECT * FROM pg_create_logical_replication_slot('elk_slot', 'test_decoding', false, true);